@@ -28,6 +28,7 @@ package com.bc.zarr.chunk;
 import static com.bc.zarr.ZarrUtils.computeSizeInteger;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteOrder;
 import java.util.Arrays;
 
@@ -94,4 +95,25 @@ public abstract class ChunkReaderWriter {
         return this.size;
     }
     
+    //compressors decoding directly into an Array (DTCOP, Quant) bypass the byte stream
+    protected boolean compressorHandlesArray() {
+        return this.compressor.canHandleStore() || this.compressor.canHandleArray();
+    }
+    
+    protected Array readArray(String storeKey, ucar.ma2.DataType dataType) throws IOException {
+        
+        if(this.compressor.canHandleStore()) {
+            Array array = this.compressor.uncompress(this.store, storeKey, dataType, chunkShape);
+            return array != null ? array : createFilled(dataType);
+        }
+        
+        try (InputStream is = store.getInputStream(storeKey)) {
+            if(is != null) {
+                return this.compressor.uncompress(is, Array.factory(dataType, chunkShape));
+            } else {
+                return createFilled(dataType);
+            }
+        }
+    }
+    
 }
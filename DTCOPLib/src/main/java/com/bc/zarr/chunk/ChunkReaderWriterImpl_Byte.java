@@ -40,6 +40,10 @@ public class ChunkReaderWriterImpl_Byte extends ChunkReaderWriter {
 
     @Override public Array read(String storeKey) throws IOException {
     	
+    	if(compressorHandlesArray()) {
+    		return readArray(storeKey, DataType.BYTE);
+    	}
+    	
     	if(readVersion == 1) {
     		throw new IOException("Not implemented");
     	}
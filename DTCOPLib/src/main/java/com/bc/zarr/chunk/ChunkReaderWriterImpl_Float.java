@@ -45,6 +45,10 @@ public class ChunkReaderWriterImpl_Float extends ChunkReaderWriter {
 
     @Override public Array read(String storeKey) throws IOException {
     	
+    	if(compressorHandlesArray()) {
+    		return readArray(storeKey, DataType.FLOAT);
+    	}
+    	
     	if(readVersion == 1) {
     		throw new IOException("Not implemented");
     	}
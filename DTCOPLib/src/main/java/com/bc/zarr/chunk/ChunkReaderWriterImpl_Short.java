@@ -49,28 +49,17 @@ public class ChunkReaderWriterImpl_Short extends ChunkReaderWriter {
 //    	System.out.println("ChunkReaderWriterImpl_Short.read(" + storeKey + ")");
     	
     	
+    	if(compressorHandlesArray()) {
+    		return readArray(storeKey, DataType.SHORT);
+    	}
+    	
     	if(readVersion == 1) {
-    		if(this.compressor.canHandleStore()) {
-    			return this.compressor.uncompress(this.store, storeKey, DataType.SHORT, chunkShape);
-    		}
-    		else if(this.compressor.canHandleArray()) {
-    			try (InputStream is = store.getInputStream(storeKey)) {
-    				if(is != null) {
-    					return this.compressor.uncompress(is,Array.factory(DataType.SHORT, chunkShape));
-    				} else {
-    					return createFilled(DataType.SHORT);
-    				}
-    			}
-    		}
-    		else {
-    			try (InputStream is = store.getInputStream(storeKey)) {
-    				if(is == null) {
-    					return createFilled(DataType.SHORT);
-    				}
+    		try (InputStream is = store.getInputStream(storeKey)) {
+    			if(is == null) {
+    				return createFilled(DataType.SHORT);
     			}
-    			throw new IOException("Not implemented");
-    			
     		}
+    		throw new IOException("Not implemented");
     	}
     	else {
     		try (InputStream is = store.getInputStream(storeKey)) {
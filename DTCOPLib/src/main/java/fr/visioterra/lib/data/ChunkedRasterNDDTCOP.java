@@ -359,10 +359,10 @@ public class ChunkedRasterNDDTCOP implements ChunkedRasterND {
 		return true;
 	}
 
-	@Override public Array getChunk(int[] chunkIndex) throws IllegalArgumentException, Exception {
+	//reader of the shard containing the chunk, shardChunkIndex is set to the index of the chunk in this shard
+	private ShardReader getShardReader(int[] chunkIndex, int[] shardChunkIndex) throws IllegalArgumentException, Exception {
 		
 		int[] shardIndex = new int[this.dimensions.size()];
-		int[] shardChunkIndex = new int[shardIndex.length];
 		
 		for (int i = 0; i < shardIndex.length; i += 1) {
 			
@@ -404,9 +404,20 @@ public class ChunkedRasterNDDTCOP implements ChunkedRasterND {
 		}
 		
 		
-		return sr.getChunk(shardChunkIndex).getArray();
+		return sr;
+	}
+
+	@Override public Array getChunk(int[] chunkIndex) throws IllegalArgumentException, Exception {
+		int[] shardChunkIndex = new int[this.dimensions.size()];
+		return getShardReader(chunkIndex, shardChunkIndex).getChunk(shardChunkIndex).getArray();
 //		return sr.getChunk(shardChunkIndex, this.dataScaleFactor, this.dataAddOffset).getArray();
 	}
+	
+	//plane index (in the chunk) of the first dimension of a chunk, e.g. a single time step : the other planes are not decoded
+	public Array getSlice(int[] chunkIndex, int index) throws IllegalArgumentException, Exception {
+		int[] shardChunkIndex = new int[this.dimensions.size()];
+		return getShardReader(chunkIndex, shardChunkIndex).getSlice(shardChunkIndex, index).getArray();
+	}
 
 	@Override public void close() throws Exception {
 		
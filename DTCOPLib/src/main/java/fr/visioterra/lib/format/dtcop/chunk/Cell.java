@@ -1,9 +1,13 @@
 package fr.visioterra.lib.format.dtcop.chunk;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.TreeSet;
 
 public class Cell implements Comparable<Cell> {
 
+	private static final HashMap<String,int[]> permutationMap = new HashMap<>();
+
 	private final int[] coordinates;
 	private final boolean zigzag;
 	
@@ -142,4 +146,33 @@ public class Cell implements Comparable<Cell> {
 		return cells.toArray(new Cell[cells.size()]);
 	}
 	
+	//row-major positions of cells in the given order
+	public static int[] toPermutation(Cell[] order, int[] shape) {
+		int[] permutation = new int[order.length];
+		for(int i = 0 ; i < order.length ; i++) {
+			int[] coordinates = order[i].getCoordinates();
+			int pos = 0;
+			for(int d = 0 ; d < coordinates.length ; d++) {
+				pos = pos * shape[d] + coordinates[d];
+			}
+			permutation[i] = pos;
+		}
+		return permutation;
+	}
+	
+	//scan position -> row-major position in a chunk of the given shape, cached by shape (a copy is returned)
+	public static int[] permutation(int[] shape, boolean zigzag) {
+		
+		String key = Arrays.toString(shape) + zigzag;
+		
+		synchronized (permutationMap) {
+			int[] permutation = permutationMap.get(key);
+			if(permutation == null) {
+				permutation = toPermutation(order(shape, zigzag), shape);
+				permutationMap.put(key, permutation);
+			}
+			return permutation.clone();
+		}
+	}
+	
 }
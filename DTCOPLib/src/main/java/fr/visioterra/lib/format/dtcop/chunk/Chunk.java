@@ -11,14 +11,39 @@ public class Chunk {
 	
 	private static final double sqrt2 = Math.sqrt(2);
 	private static final HashMap<Integer,float[]> coefsMap = new HashMap<>();
+	private static final double[][] leeFactors = new double[6][];		//1 / (2 * cos((i + 0.5) * PI / len)) for len = 2^idx
+	private static final ThreadLocal<Scratch> scratchBuffer = new ThreadLocal<>();
+
+	//if true, dct() and idct() run on the float[] storage of FLOAT chunks instead of going through Index
+	public static boolean flatTransform = true;
+	
+	//if true, the flat transform uses the O(N log N) Lee factorisation for power-of-two sizes
+	public static boolean fastTransform = true;
 	
+	//if true, idct(data, shape, permutation, lastScan) skips all-zero lines and truncates low-frequency lines
+	public static boolean sparseTransform = true;
+	
+	private static class Scratch {
+		
+		private final float[] line;
+		private final double[] vector;
+		private final double[] temp;
+		
+		private Scratch(int size) {
+			this.line = new float[size];
+			this.vector = new double[size];
+			this.temp = new double[size];
+		}
+		
+	}
+
 	private final Array array;
 	private final int[] shape;
 	
 	
 	static {
 		
-		int[] sizes = new int[] {4,8,16,32};	//{2,4,8,16,32,64,128,256,512};
+		int[] sizes = new int[] {1,2,4,8,16,32};	//{2,4,8,16,32,64,128,256,512};
 		
 		for(int size : sizes) {
 
@@ -35,6 +60,15 @@ public class Chunk {
 			
 		}
 		
+		for(int idx = 1 ; idx < leeFactors.length ; idx++) {
+			int len = 1 << idx;
+			double[] factors = new double[len / 2];
+			for(int i = 0 ; i < factors.length ; i++) {
+				factors[i] = 1.0 / (Math.cos((i + 0.5) * Math.PI / len) * 2.0);
+			}
+			leeFactors[idx] = factors;
+		}
+		
 	}
 
 	
@@ -273,6 +307,419 @@ public class Chunk {
 		
 	}
 	
+	private static Scratch getScratch(int size) {
+		Scratch scratch = scratchBuffer.get();
+		if(scratch == null || scratch.line.length < size) {
+			scratch = new Scratch(size);
+			scratchBuffer.set(scratch);
+		}
+		return scratch;
+	}
+
+	private static float[] getCoefs(int size) {
+		float[] coefs = coefsMap.get(size);
+		if(coefs == null) {
+			throw new IllegalArgumentException("Unsupported chunk size (" + size + ")");
+		}
+		return coefs;
+	}
+
+	private static boolean isFast(int size) {
+		return fastTransform && (size & (size - 1)) == 0 && Integer.numberOfTrailingZeros(size) < leeFactors.length;
+	}
+
+	//same operations as dct1d(Array,...) on a line of a row-major float[] => bit-identical output
+	private static void dct1d(float[] data, int offset, int stride, int size, float[] coefs, float[] tmp) {
+
+		//copy value from data to tmp
+		for (int k = 0, pos = offset; k < size; k++, pos += stride) {
+			tmp[k] = data[pos];
+		}
+
+		//perform DCT from tmp values to data
+		for (int k = 0, pos = offset; k < size; k++, pos += stride) {
+
+			float sum = 0.0f;
+			for(int n = 0 ; n < size ; n++) {
+				sum += tmp[n] * coefs[n * size + k];
+			}
+
+			data[pos] = sum;
+		}
+
+	}
+
+	//same operations as idct1d(Array,...) on a line of a row-major float[] => bit-identical output
+	private static void idct1d(float[] data, int offset, int stride, int size, float[] coefs, float[] tmp) {
+
+		//copy value from data to tmp
+		for (int n = 0, pos = offset; n < size; n++, pos += stride) {
+			tmp[n] = data[pos];
+		}
+
+		//perform iDCT from tmp values to data
+		for (int n = 0, pos = offset; n < size; n++, pos += stride) {
+
+			float sum = 0.0f;
+			int row = n * size;
+			for (int k = 0; k < size; k++) {
+				sum += tmp[k] * coefs[row + k];
+			}
+
+			data[pos] = sum;
+		}
+
+	}
+
+	//Lee's recursive factorisation of the (unscaled) DCT-II : vector[off..off+len[ is transformed in place, temp is work space
+	private static void leeForward(double[] vector, double[] temp, int off, int len) {
+
+		if(len == 1) {
+			return;
+		}
+
+		int half = len >>> 1;
+		double[] factors = leeFactors[Integer.numberOfTrailingZeros(len)];
+
+		for(int i = 0 ; i < half ; i++) {
+			double x = vector[off + i];
+			double y = vector[off + len - 1 - i];
+			temp[off + i] = x + y;
+			temp[off + i + half] = (x - y) * factors[i];
+		}
+
+		leeForward(temp, vector, off, half);
+		leeForward(temp, vector, off + half, half);
+
+		for(int i = 0 ; i < half - 1 ; i++) {
+			vector[off + i * 2]     = temp[off + i];
+			vector[off + i * 2 + 1] = temp[off + i + half] + temp[off + i + half + 1];
+		}
+		vector[off + len - 2] = temp[off + half - 1];
+		vector[off + len - 1] = temp[off + len - 1];
+
+	}
+
+	//Lee's recursive factorisation of the (unscaled) DCT-III : x[n] = sum(X[k] * cos((n + 0.5) * k * PI / len))
+	private static void leeInverse(double[] vector, double[] temp, int off, int len) {
+
+		if(len == 1) {
+			return;
+		}
+
+		int half = len >>> 1;
+		double[] factors = leeFactors[Integer.numberOfTrailingZeros(len)];
+
+		temp[off] = vector[off];
+		temp[off + half] = vector[off + 1];
+		for(int i = 1 ; i < half ; i++) {
+			temp[off + i] = vector[off + i * 2];
+			temp[off + i + half] = vector[off + i * 2 - 1] + vector[off + i * 2 + 1];
+		}
+
+		leeInverse(temp, vector, off, half);
+		leeInverse(temp, vector, off + half, half);
+
+		for(int i = 0 ; i < half ; i++) {
+			double x = temp[off + i];
+			double y = temp[off + i + half] * factors[i];
+			vector[off + i] = x + y;
+			vector[off + len - 1 - i] = x - y;
+		}
+
+	}
+
+	//O(N log N) orthonormal DCT-II of a line, size must be a power of two
+	private static void fastDct1d(float[] data, int offset, int stride, int size, Scratch scratch) {
+
+		double[] vector = scratch.vector;
+
+		for (int n = 0, pos = offset; n < size; n++, pos += stride) {
+			vector[n] = data[pos];
+		}
+
+		leeForward(vector, scratch.temp, 0, size);
+
+		double norm0 = 1.0 / Math.sqrt(size);
+		double normK = sqrt2 * norm0;
+
+		data[offset] = (float)(vector[0] * norm0);
+		for (int k = 1, pos = offset + stride; k < size; k++, pos += stride) {
+			data[pos] = (float)(vector[k] * normK);
+		}
+
+	}
+
+	//O(N log N) orthonormal DCT-III (inverse of fastDct1d) of a line, size must be a power of two
+	private static void fastIdct1d(float[] data, int offset, int stride, int size, Scratch scratch) {
+
+		double[] vector = scratch.vector;
+
+		double norm0 = 1.0 / Math.sqrt(size);
+		double normK = sqrt2 * norm0;
+
+		vector[0] = data[offset] * norm0;
+		for (int k = 1, pos = offset + stride; k < size; k++, pos += stride) {
+			vector[k] = data[pos] * normK;
+		}
+
+		leeInverse(vector, scratch.temp, 0, size);
+
+		for (int n = 0, pos = offset; n < size; n++, pos += stride) {
+			data[pos] = (float)vector[n];
+		}
+
+	}
+
+	private static void transform1d(float[] data, int offset, int stride, int size, float[] coefs, Scratch scratch, boolean fast, boolean inverse) {
+
+		if(fast) {
+			if(inverse) {
+				fastIdct1d(data, offset, stride, size, scratch);
+			} else {
+				fastDct1d(data, offset, stride, size, scratch);
+			}
+		}
+		else {
+			if(inverse) {
+				idct1d(data, offset, stride, size, coefs, scratch.line);
+			} else {
+				dct1d(data, offset, stride, size, coefs, scratch.line);
+			}
+		}
+
+	}
+
+	//iDCT of a line whose coefficients are zero from index len : truncated basis sum (same result as idct1d)
+	private static void idct1d(float[] data, int offset, int stride, int size, int len, float[] coefs, float[] tmp) {
+
+		//copy value from data to tmp
+		for (int k = 0, pos = offset; k < len; k++, pos += stride) {
+			tmp[k] = data[pos];
+		}
+
+		//perform iDCT from tmp values to data
+		for (int n = 0, pos = offset; n < size; n++, pos += stride) {
+
+			float sum = 0.0f;
+			int row = n * size;
+			for (int k = 0; k < len; k++) {
+				sum += tmp[k] * coefs[row + k];
+			}
+
+			data[pos] = sum;
+		}
+
+	}
+
+	//iDCT of a line with non-zero coefficients in [0,len[ : skipped if len == 0, truncated sum for low frequencies
+	private static void sparseIdct1d(float[] data, int offset, int stride, int size, int len, float[] coefs, Scratch scratch, boolean fast, int maxTruncated) {
+
+		if(len == 0) {
+			return;
+		}
+
+		if(len <= maxTruncated) {
+			idct1d(data, offset, stride, size, len, coefs, scratch.line);
+		}
+		else {
+			transform1d(data, offset, stride, size, coefs, scratch, fast, true);
+		}
+
+	}
+
+	//3D iDCT knowing that only scan positions [0,lastScan] of permutation may be non-zero
+	private static void sparseIdct3d(float[] data, int size, int[] permutation, int lastScan) {
+
+		float[] coefs = getCoefs(size);
+		Scratch scratch = getScratch(size);
+		boolean fast = isFast(size);
+		int plane = size * size;
+
+		//a truncated sum of len terms costs size * len, about the cost of the fast transform for len = log2(size)
+		int maxTruncated = fast ? Integer.numberOfTrailingZeros(size) : size;
+
+		//extent of non-zero coefficients : along dim 2 for each line (k,j), along dim 1 for each plane k, along dim 0
+		int[] lineLen = new int[plane];
+		int[] planeLen = new int[size];
+		int cubeLen = 0;
+		for(int s = 0 ; s <= lastScan && s < permutation.length ; s++) {
+			int pos = permutation[s];
+			if(data[pos] != 0.0f) {
+				int k = pos / plane;
+				int j = (pos / size) % size;
+				int i = pos % size;
+				lineLen[k * size + j] = Math.max(lineLen[k * size + j], i + 1);
+				planeLen[k] = Math.max(planeLen[k], j + 1);
+				cubeLen = Math.max(cubeLen, k + 1);
+			}
+		}
+
+		//dim 2
+		for(int k = 0; k < size; k++) {
+			for (int j = 0; j < size; j++) {
+				sparseIdct1d(data, k * plane + j * size, 1, size, lineLen[k * size + j], coefs, scratch, fast, maxTruncated);
+			}
+		}
+
+		//dim 1 : planes are dense along dim 2 now
+		for(int k = 0; k < size; k++) {
+			for (int i = 0; i < size; i++) {
+				sparseIdct1d(data, k * plane + i, size, size, planeLen[k], coefs, scratch, fast, maxTruncated);
+			}
+		}
+
+		//dim 0
+		for(int j = 0; j < size; j++) {
+			for (int i = 0; i < size; i++) {
+				sparseIdct1d(data, j * size + i, plane, size, cubeLen, coefs, scratch, fast, maxTruncated);
+			}
+		}
+
+	}
+
+	private static void transform2d(float[] data, int size, boolean inverse) {
+
+		float[] coefs = getCoefs(size);
+		Scratch scratch = getScratch(size);
+		boolean fast = isFast(size);
+
+		//dim 1
+		for(int j = 0; j < size; j++) {
+			transform1d(data, j * size, 1, size, coefs, scratch, fast, inverse);
+		}
+
+		//dim 0
+		for (int i = 0; i < size; i++) {
+			transform1d(data, i, size, size, coefs, scratch, fast, inverse);
+		}
+
+	}
+
+	private static void transform3d(float[] data, int size, boolean inverse) {
+
+		float[] coefs = getCoefs(size);
+		Scratch scratch = getScratch(size);
+		boolean fast = isFast(size);
+		int plane = size * size;
+
+		//dim 2
+		for(int k = 0; k < size; k++) {
+			for (int j = 0; j < size; j++) {
+				transform1d(data, k * plane + j * size, 1, size, coefs, scratch, fast, inverse);
+			}
+		}
+
+		//dim 1
+		for(int k = 0; k < size; k++) {
+			for (int i = 0; i < size; i++) {
+				transform1d(data, k * plane + i, size, size, coefs, scratch, fast, inverse);
+			}
+		}
+
+		//dim 0
+		for(int j = 0; j < size; j++) {
+			for (int i = 0; i < size; i++) {
+				transform1d(data, j * size + i, plane, size, coefs, scratch, fast, inverse);
+			}
+		}
+
+	}
+
+	private static int getCubeSize(int[] shape) {
+		int size = shape[0];
+		for(int d = 1 ; d < shape.length ; d++) {
+			if(shape[d] != size) {
+				throw new IllegalArgumentException();
+			}
+		}
+		return size;
+	}
+
+	//return the float[] backing the array if it is a FLOAT array stored in row-major order, null otherwise
+	private static float[] getFloatStorage(Array array) {
+		if(array.getDataType() != DataType.FLOAT) {
+			return null;
+		}
+		Object storage = array.get1DJavaArray(DataType.FLOAT);
+		return storage == array.getStorage() ? (float[])storage : null;
+	}
+
+	//2D / 3D - in place DCT of a row-major float[]
+	public static void dct(float[] data, int[] shape) {
+
+		int size = getCubeSize(shape);
+
+		if(shape.length == 3) {
+			transform3d(data, size, false);
+		}
+		else if(shape.length == 2) {
+			transform2d(data, size, false);
+		}
+		else {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	//2D / 3D - in place iDCT of a row-major float[]
+	public static void idct(float[] data, int[] shape) {
+
+		int size = getCubeSize(shape);
+
+		if(shape.length == 3) {
+			transform3d(data, size, true);
+		}
+		else if(shape.length == 2) {
+			transform2d(data, size, true);
+		}
+		else {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+	//3D - in place iDCT of a row-major float[] where only scan positions [0,lastScan] of permutation may be non-zero
+	public static void idct(float[] data, int[] shape, int[] permutation, int lastScan) {
+
+		int size = getCubeSize(shape);
+
+		//dense chunk : the extent analysis would not pay off
+		if(sparseTransform && shape.length == 3 && lastScan < permutation.length / 2) {
+			sparseIdct3d(data, size, permutation, lastScan);
+		}
+		else {
+			idct(data, shape);
+		}
+
+	}
+
+	//3D - iDCT of the plane index of dim 0 only, where only dim 0 frequencies [0,len[ may be non-zero
+	//dim 0 is collapsed with the iDCT basis row of index, then 2D iDCT of the resulting plane (new row-major float[])
+	public static float[] idctSlice(float[] data, int[] shape, int index, int len) {
+
+		int size = getCubeSize(shape);
+		if(shape.length != 3) {
+			throw new UnsupportedOperationException();
+		}
+
+		float[] coefs = getCoefs(size);
+		int plane = size * size;
+		int row = index * size;
+
+		float[] slice = new float[plane];
+		for(int k = 0 ; k < len ; k++) {
+			float c = coefs[row + k];
+			for(int p = 0, pos = k * plane ; p < plane ; p++, pos++) {
+				slice[p] += data[pos] * c;
+			}
+		}
+
+		transform2d(slice, size, true);
+
+		return slice;
+	}
+
 	private static void round(Array array, Index index, int dim) {
 		
 		int len = index.getShape(dim);
@@ -352,6 +799,18 @@ public class Chunk {
 		
 	}
 	
+	//values[i] goes to row-major position permutation[i]
+	public Chunk(DataType dataType, int[] shape, int[] values, int[] permutation) {
+		
+		this.array = Array.factory(dataType, shape);
+		this.shape = shape;
+		
+		for(int i = 0 ; i < values.length ; i++) {
+			this.array.setInt(permutation[i], values[i]);
+		}
+		
+	}
+	
 	public Array getArray() {
 		return this.array;
 	}
@@ -388,7 +847,12 @@ public class Chunk {
 
 		int[] shape = this.array.getShape();
 		
-		if(shape.length == 3) {
+		float[] data = flatTransform ? getFloatStorage(this.array) : null;
+		
+		if(data != null) {
+			dct(data, shape);
+		}
+		else if(shape.length == 3) {
 			dct3d(this.array, new int[] {0,0,0}, shape);
 		}
 		else if(shape.length == 2) {
@@ -405,7 +869,12 @@ public class Chunk {
 		
 		int[] shape = this.array.getShape();
 		
-		if(shape.length == 3) {
+		float[] data = flatTransform ? getFloatStorage(this.array) : null;
+		
+		if(data != null) {
+			idct(data, shape);
+		}
+		else if(shape.length == 3) {
 			idct3d(this.array, new int[] {0,0,0}, shape);
 		}
 		else if(shape.length == 2) {
@@ -595,6 +1064,26 @@ public class Chunk {
 	
 	
 	
+	//values at row-major positions permutation[i], rounded
+	public int[] getAsIntArray(int[] permutation) {
+		
+		int[] values = new int[permutation.length];
+		float[] data = getFloatStorage(this.array);
+		
+		if(data != null) {
+			for(int i = 0 ; i < permutation.length ; i++) {
+				values[i] = Math.round(data[permutation[i]]);
+			}
+		}
+		else {
+			for(int i = 0 ; i < permutation.length ; i++) {
+				values[i] = Math.round(this.array.getFloat(permutation[i]));
+			}
+		}
+		
+		return values;
+	}
+	
 	private static void scaleRound(Array input, Array output, Index index, int dim, double scale, double offset) {
 		
 		int len = index.getShape(dim);
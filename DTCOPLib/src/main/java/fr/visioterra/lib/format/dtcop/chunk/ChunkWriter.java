@@ -1,5 +1,9 @@
 package fr.visioterra.lib.format.dtcop.chunk;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
 
 import fr.visioterra.lib.format.dtcop.huffman.Histogram;
@@ -7,6 +11,8 @@ import fr.visioterra.lib.format.dtcop.huffman.Huffman;
 import fr.visioterra.lib.format.dtcop.quantization.QuantChunk;
 import fr.visioterra.lib.io.bit.BitWriter;
 import fr.visioterra.lib.io.stream.ByteArrayOutputStream;
+import fr.visioterra.lib.io.stream.StreamTools;
+import ucar.ma2.DataType;
 
 public class ChunkWriter {
 
@@ -15,41 +21,231 @@ public class ChunkWriter {
 	private static final int maxValue = +32767;
 	private static final int maxZeroSequenceLen = 22;
 	
+	//run-length alphabet : zero run of len in [1,maxRunLen] coded as eobCode + len, eobCode alone ends the block (zero tail)
+	public static final int eobCode   = maxValue + 1;
+	public static final int maxRunLen = 1024;
+	
 	private final int[] shape;
 	private final float[] quantPolynom;
-	private final int[] coefficients;
+	private final short[] coefficients;		//zigzag order, escapeCode where the value is out of [minValue,maxValue] (see escapes)
+	private final int[] escapes;			//(index, value) pairs of the coefficients out of the 16bits range (DC in practice)
+	private final boolean runLength;		//AC symbols of the run-length alphabet instead of the repeated zeros / rleCode one
+	private final int quantIdx;
+	private final float constant;			//value of a constant chunk (empty quantPolynom, no coefficient)
+	
+	private static final short escapeCode = (short)rleCode;
 	
-	private static QuantChunk checkError(Chunk origin, Chunk dct, List<QuantChunk> qChunks, double maxError) {
+	public static boolean bisection = true;
+	public static boolean errorBound = true;	//accept or reject QuantChunk from DCT domain bounds when possible
+	
+	//bounds of the max abs error computed in the DCT domain (orthonormal transform), without idct
+	//per chunk data (coefficients, basis magnitudes, rounding margin) computed once for every trial of the search
+	private static class ErrorBound {
+		
+		private final int[] shape;
+		private final float[] coefs;
+		private final double[][] basis;		//max magnitude of the basis functions in each dimension
+		private final double margin;		//margin for float rounding of the transforms
+		
+		//3D chunks only (see create)
+		private ErrorBound(Chunk origin, Chunk dct) {
+			
+			this.shape = dct.getShape();
+			this.coefs = (float[])dct.getArray().get1DJavaArray(DataType.FLOAT);
+			
+			this.basis = new double[this.shape.length][];
+			for(int d = 0 ; d < this.shape.length ; d++) {
+				this.basis[d] = new double[this.shape[d]];
+				Arrays.fill(this.basis[d], Math.sqrt(2.0 / this.shape[d]));
+				this.basis[d][0] = Math.sqrt(1.0 / this.shape[d]);
+			}
+			
+			double max = 0.0;
+			for(float v : (float[])origin.getArray().get1DJavaArray(DataType.FLOAT)) {
+				max = Math.max(max, Math.abs(v));
+			}
+			this.margin = 1e-5 * max + 1e-6;
+		}
+		
+		//null if the bounds are disabled or not available (not a 3D chunk) : exact check only
+		private static ErrorBound create(Chunk origin, Chunk dct) {
+			return (errorBound && dct.getShape().length == 3) ? new ErrorBound(origin, dct) : null;
+		}
+		
+		//return 1 if qc surely meets maxError, -1 if it surely does not, 0 if the exact check is needed
+		private int estimate(QuantChunk qc, double maxError) {
+			
+			float[] quant = (float[])qc.getArray().get1DJavaArray(DataType.FLOAT);
+			
+			//sum of |quantization error| x basis magnitude (upper bound) and sum of squares (Parseval)
+			double sumAbs = 0.0;
+			double sumSq = 0.0;
+			int idx = 0;
+			for(int k = 0 ; k < this.shape[0] ; k++) {
+				for(int j = 0 ; j < this.shape[1] ; j++) {
+					double b = this.basis[0][k] * this.basis[1][j];
+					for(int i = 0 ; i < this.shape[2] ; i++) {
+						double scale = quant[idx];
+						double e = this.coefs[idx] - (float)(Math.round(this.coefs[idx] / scale) * scale);
+						sumAbs += Math.abs(e) * b * this.basis[2][i];
+						sumSq += e * e;
+						idx++;
+					}
+				}
+			}
+			
+			if(sumAbs + this.margin < maxError) {
+				return 1;
+			}
+			
+			//max abs error >= rms error
+			if(Math.sqrt(sumSq / this.coefs.length) - this.margin >= maxError) {
+				return -1;
+			}
+			
+			return 0;
+		}
+	}
+	
+	private static boolean checkError(Chunk origin, Chunk dct, ErrorBound bound, QuantChunk qc, double maxError) {
+		
+		if(bound != null) {
+			int estimate = bound.estimate(qc, maxError);
+			if(estimate != 0) {
+				return estimate > 0;
+			}
+		}
+		
+		Chunk tmp = dct.copy();
+		tmp.roundTripScale(qc);
+		tmp.idct();
+		double diff = tmp.getMaxAbsDiff(origin);
+		return diff < maxError;
+	}
+	
+	//index of the first QuantChunk meeting maxError, -1 if none
+	private static int linearSearch(Chunk origin, Chunk dct, ErrorBound bound, List<QuantChunk> qChunks, double maxError) {
+		
+		for(int i = 0 ; i < qChunks.size() ; i++) {
+			if(checkError(origin, dct, bound, qChunks.get(i), maxError)) {
+				return i;
+			}
+		}
+		
+		return -1;
+	}
+	
+	//same result as linearSearch if error decreases along qChunks, in about log2(n) trials
+	//seed (previous chunk choice, -1 if none) is used to bracket the result before bisection
+	private static int bisectionSearch(Chunk origin, Chunk dct, ErrorBound bound, List<QuantChunk> qChunks, double maxError, int seed) {
+		
+		//every index <= lo fails, hi meets maxError (or hi == n)
+		int n = qChunks.size();
+		int lo = -1;
+		int hi = n;
+		
+		if(0 <= seed && seed < n) {
+			
+			if(checkError(origin, dct, bound, qChunks.get(seed), maxError)) {
+				
+				//gallop toward the most aggressive QuantChunk
+				hi = seed;
+				for(int step = 1 ; hi - step > lo ; step = step * 2) {
+					int t = hi - step;
+					if(checkError(origin, dct, bound, qChunks.get(t), maxError)) {
+						hi = t;
+					}
+					else {
+						lo = t;
+						break;
+					}
+				}
+			}
+			else {
+				
+				//gallop toward the less aggressive QuantChunk
+				lo = seed;
+				for(int step = 1 ; lo + step < hi ; step = step * 2) {
+					int t = lo + step;
+					if(checkError(origin, dct, bound, qChunks.get(t), maxError)) {
+						hi = t;
+						break;
+					}
+					else {
+						lo = t;
+					}
+				}
+			}
+		}
 		
-		for(QuantChunk qc : qChunks) {
-			Chunk tmp = dct.copy();
-			tmp.roundTripScale(qc);
-			tmp.idct();
-			double diff = tmp.getMaxAbsDiff(origin);
-			if(diff < maxError) {
-				return qc;
+		while(hi - lo > 1) {
+			int mid = (lo + hi) >>> 1;
+			if(checkError(origin, dct, bound, qChunks.get(mid), maxError)) {
+				hi = mid;
+			}
+			else {
+				lo = mid;
 			}
 		}
 		
-		return null;
+		return hi < n ? hi : -1;
 	}
 	
 	public ChunkWriter(Chunk origin, List<QuantChunk> qChunks, double maxError, Cell[] order, Histogram histogram) throws Exception {
+		this(origin, qChunks, maxError, order, histogram, -1);
+	}
+	
+	//seed : index in qChunks of a likely choice (e.g. the one of a previous chunk), -1 if none
+	public ChunkWriter(Chunk origin, List<QuantChunk> qChunks, double maxError, Cell[] order, Histogram histogram, int seed) throws Exception {
+		this(origin, qChunks, maxError, Cell.toPermutation(order, origin.getShape()), histogram, seed);
+	}
+	
+	//order : scan position -> row-major position (see Cell.permutation)
+	public ChunkWriter(Chunk origin, List<QuantChunk> qChunks, double maxError, int[] order, Histogram histogram, int seed) throws Exception {
+		this(origin, qChunks, maxError, order, histogram, seed, false);
+	}
+	
+	//runLength : AC zero runs coded with the run-length alphabet (eobCode, eobCode + len) instead of repeated zeros / rleCode
+	public ChunkWriter(Chunk origin, List<QuantChunk> qChunks, double maxError, int[] order, Histogram histogram, int seed, boolean runLength) throws Exception {
+		this(origin, qChunks, maxError, order, histogram, seed, runLength, false);
+	}
+	
+	//constant : chunk whose range is within maxError stored as a single value (no DCT, no Huffman symbols)
+	public ChunkWriter(Chunk origin, List<QuantChunk> qChunks, double maxError, int[] order, Histogram histogram, int seed, boolean runLength, boolean constant) throws Exception {
 	
 		this.shape = origin.getShape();
+		this.runLength = runLength;
+		
+		if(constant) {
+			float value = constantValue(origin, maxError);
+			if(Float.isNaN(value) == false) {
+				this.quantPolynom = new float[0];
+				this.quantIdx = -1;
+				this.coefficients = new short[0];
+				this.escapes = new int[0];
+				this.constant = value;
+				return;
+			}
+		}
+		
+		this.constant = Float.NaN;
 		
 		//create copy and apply 32x32x32 DCT
 		Chunk dct = origin.copy();
 		dct.dct();
 		
 		//find the right quantization matrix
-		QuantChunk qc = checkError(origin, dct, qChunks, maxError);
+		ErrorBound bound = ErrorBound.create(origin, dct);
+		int qIdx = bisection ? bisectionSearch(origin, dct, bound, qChunks, maxError, seed) : linearSearch(origin, dct, bound, qChunks, maxError);
 
 		//if use, try to use the last QuantChunk
-		if(qc == null) {
-			qc = qChunks.get(qChunks.size() - 1);
+		if(qIdx < 0) {
+			qIdx = qChunks.size() - 1;
 		}
 		
+		QuantChunk qc = qChunks.get(qIdx);
+		this.quantIdx = qIdx;
+		
 		this.quantPolynom = qc.getPolynom();
 		
 //		System.out.println(Arrays.toString(idxChunk) + " => " + qc.getIdx() + " / " + Arrays.toString(qc.getPolynom()) + " / " + qc.getError() + " / " + maxError);
@@ -58,14 +254,31 @@ public class ChunkWriter {
 		dct.scale(qc,false,true);
 		
 		//get values in zigzag order
-		this.coefficients = dct.getAsIntArray(order);
+		int[] values = dct.getAsIntArray(order);
+		
+		//AC coefficients must fit the 16bits symbols, only DC may be escaped
+		for(int idx = 1 ; idx < values.length ; idx++) {
+			if(values[idx] < minValue || maxValue < values[idx]) {
+				throw new Exception("value " + values[idx] + " out of range [" + minValue + "," + maxValue + "]");
+			}
+		}
+		
+		this.coefficients = new short[values.length];
+		this.escapes = pack(values, this.coefficients);
+		
+		if(runLength) {
+			for(int symbol : toRunLengthSymbols(this.coefficients)) {
+				histogram.update(symbol);
+			}
+			return;
+		}
 		
 		int zeroSequenceLen = 0;
 		
 		//browse value to update histogram and ignore DC coefficient
-		for(int idx = 1 ; idx < this.coefficients.length ; idx++) {
+		for(int idx = 1 ; idx < values.length ; idx++) {
 			
-			int sample = this.coefficients[idx];
+			int sample = values[idx];
 			
 			if(sample < minValue || maxValue < sample) {
 				throw new Exception("value " + sample + " out of range [" + minValue + "," + maxValue + "]");
@@ -102,15 +315,194 @@ public class ChunkWriter {
 //		return values;
 	}
 	
+	//middle of the range of origin if every sample is within maxError of it, NaN otherwise
+	private static float constantValue(Chunk origin, double maxError) {
+		
+		float[] data = (float[])origin.getArray().get1DJavaArray(DataType.FLOAT);
+		float min = data[0];
+		float max = data[0];
+		for(int i = 1 ; i < data.length ; i++) {
+			float v = data[i];
+			if(v < min) {
+				min = v;
+			}
+			else if(v > max) {
+				max = v;
+			}
+			else if(v != v) {
+				return Float.NaN;
+			}
+		}
+		
+		float value = (float)((min + (double)max) / 2.0);
+		if(max - (double)value <= maxError && value - (double)min <= maxError) {
+			return value;
+		}
+		return Float.NaN;
+	}
+	
+	//16bits storage of values into coefficients, return the (index, value) pairs of the escaped ones
+	private static int[] pack(int[] values, short[] coefficients) {
+		
+		int[] escapes = new int[0];
+		
+		for(int idx = 0 ; idx < values.length ; idx++) {
+			int v = values[idx];
+			if(v < minValue || maxValue < v) {
+				coefficients[idx] = escapeCode;
+				escapes = Arrays.copyOf(escapes, escapes.length + 2);
+				escapes[escapes.length - 2] = idx;
+				escapes[escapes.length - 1] = v;
+			}
+			else {
+				coefficients[idx] = (short)v;
+			}
+		}
+		
+		return escapes;
+	}
+	
+	private int getCoefficient(int idx) {
+		if(this.coefficients[idx] == escapeCode) {
+			for(int i = 0 ; i < this.escapes.length ; i += 2) {
+				if(this.escapes[i] == idx) {
+					return this.escapes[i + 1];
+				}
+			}
+		}
+		return this.coefficients[idx];
+	}
+	
+	//AC coefficients (values[0] is DC) as symbols of the run-length alphabet
+	private static int[] toRunLengthSymbols(short[] values) throws Exception {
+		
+		int[] symbols = new int[values.length];
+		int count = 0;
+		
+		//last non-zero AC coefficient, the zero tail is a single eobCode
+		int last = values.length - 1;
+		while(last > 0 && values[last] == 0) {
+			last--;
+		}
+		
+		int zeroSequenceLen = 0;
+		for(int idx = 1 ; idx <= last ; idx++) {
+			
+			int sample = values[idx];
+			
+			if(sample == 0) {
+				zeroSequenceLen++;
+			}
+			else {
+				//zero runs longer than maxRunLen are split
+				while(zeroSequenceLen > 0) {
+					int len = Math.min(zeroSequenceLen, maxRunLen);
+					symbols[count++] = eobCode + len;
+					zeroSequenceLen -= len;
+				}
+				symbols[count++] = sample;
+			}
+		}
+		
+		if(last < values.length - 1) {
+			symbols[count++] = eobCode;
+		}
+		
+		return Arrays.copyOf(symbols, count);
+	}
+	
+	//index in qChunks of the selected QuantChunk, -1 for a constant chunk
+	public int getQuantIdx() {
+		return this.quantIdx;
+	}
+	
+	public boolean isConstant() {
+		return this.quantPolynom.length == 0;
+	}
+	
+	private ChunkWriter(int[] shape, float[] quantPolynom, int quantIdx, short[] coefficients, int[] escapes, boolean runLength, float constant) {
+		this.shape = shape;
+		this.quantPolynom = quantPolynom;
+		this.quantIdx = quantIdx;
+		this.coefficients = coefficients;
+		this.escapes = escapes;
+		this.runLength = runLength;
+		this.constant = constant;
+	}
+	
+	//write the state (shape, quantization, coefficients) to encode the chunk later, without the origin (see readState)
+	public void writeState(OutputStream os) throws Exception {
+		
+		os.write(this.shape.length);
+		for(int d : this.shape) {
+			StreamTools.writeInt(os, d);
+		}
+		
+		os.write(this.quantPolynom.length);
+		for(float f : this.quantPolynom) {
+			StreamTools.writeInt(os, Float.floatToIntBits(f));
+		}
+		
+		StreamTools.writeInt(os, this.quantIdx);
+		os.write(this.runLength ? 1 : 0);
+		
+		if(isConstant()) {
+			StreamTools.writeInt(os, Float.floatToIntBits(this.constant));
+			return;
+		}
+		
+		//escaped coefficients + 16bits coefficients
+		StreamTools.writeInt(os, this.escapes.length);
+		for(int e : this.escapes) {
+			StreamTools.writeInt(os, e);
+		}
+		ByteBuffer bb = ByteBuffer.allocate(2 * this.coefficients.length);
+		bb.asShortBuffer().put(this.coefficients);
+		os.write(bb.array());
+	}
+	
+	//read a state written by writeState
+	public static ChunkWriter readState(InputStream is) throws Exception {
+		
+		int[] shape = new int[is.read()];
+		int size = 1;
+		for(int d = 0 ; d < shape.length ; d++) {
+			shape[d] = StreamTools.readInt(is);
+			size = size * shape[d];
+		}
+		
+		float[] quantPolynom = new float[is.read()];
+		for(int i = 0 ; i < quantPolynom.length ; i++) {
+			quantPolynom[i] = Float.intBitsToFloat(StreamTools.readInt(is));
+		}
+		
+		int quantIdx = StreamTools.readInt(is);
+		boolean runLength = is.read() == 1;
+		
+		if(quantPolynom.length == 0) {
+			float constant = Float.intBitsToFloat(StreamTools.readInt(is));
+			return new ChunkWriter(shape, quantPolynom, quantIdx, new short[0], new int[0], runLength, constant);
+		}
+		
+		int[] escapes = new int[StreamTools.readInt(is)];
+		for(int i = 0 ; i < escapes.length ; i++) {
+			escapes[i] = StreamTools.readInt(is);
+		}
+		
+		short[] coefficients = new short[size];
+		byte[] tmp = new byte[2 * size];
+		StreamTools.readFully(is, tmp, 0, tmp.length);
+		ByteBuffer.wrap(tmp).asShortBuffer().get(coefficients);
+		
+		return new ChunkWriter(shape, quantPolynom, quantIdx, coefficients, escapes, runLength, Float.NaN);
+	}
+	
 	public byte[] getBytes(Huffman huffman) throws Exception {
 		
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		
 		try(BitWriter bw = new BitWriter(baos,64)) {
 			
-			int[] values = this.coefficients;
-			int dc = values[0];
-			
 			//write shape
 			bw.writeBits(this.shape.length,8);
 			bw.writeBits(this.shape[0],8);
@@ -124,15 +516,76 @@ public class ChunkWriter {
 				bw.writeBits(f,32);
 			}
 			
-			//write DC coefficient
-			bw.writeBits(dc,32);
+			//constant chunk : value instead of the coefficients
+			if(isConstant()) {
+				bw.writeBits(Float.floatToIntBits(this.constant),32);
+			}
+			else {
+				writeCoefficients(bw, huffman);
+			}
+		
+		}
+		
+		return baos.toByteArray();
+	}
+	
+	//true if every symbol written by getBytes(huffman) is in the alphabet of huffman (e.g. a table trained on another shard)
+	public boolean isCoveredBy(Huffman huffman) throws Exception {
+		
+		if(isConstant()) {
+			return true;
+		}
+		
+		if(this.runLength) {
+			for(int symbol : toRunLengthSymbols(this.coefficients)) {
+				if(huffman.contains(symbol) == false) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		int zeroSequenceLen = 0;
+		for(int idx = 1 ; idx < this.coefficients.length ; idx++) {
+			int ac = this.coefficients[idx];
+			if(ac == 0) {
+				zeroSequenceLen++;
+			}
+			else {
+				if(zeroSequenceLen > 0 && huffman.contains(zeroSequenceLen > maxZeroSequenceLen ? rleCode : 0) == false) {
+					return false;
+				}
+				zeroSequenceLen = 0;
+				if(huffman.contains(ac) == false) {
+					return false;
+				}
+			}
+		}
+		
+		return zeroSequenceLen == 0 || huffman.contains(zeroSequenceLen > maxZeroSequenceLen ? rleCode : 0);
+	}
+	
+	private void writeCoefficients(BitWriter bw, Huffman huffman) throws Exception {
+		
+		short[] values = this.coefficients;
+		int dc = getCoefficient(0);
+		
+		//write DC coefficient
+		bw.writeBits(dc,32);
+		
+		//write AC coefficients
+		if(this.runLength) {
+			for(int symbol : toRunLengthSymbols(values)) {
+				huffman.writeCode(bw,symbol);
+			}
+		}
+		else {
 			
-			//write AC coefficients
 			int zeroSequenceLen = 0;
 			for(int idx = 1 ; idx < values.length ; idx++) {
-				
+			
 				int ac = values[idx];
-				
+			
 				if(ac == 0) {
 					zeroSequenceLen++;
 				}
@@ -148,12 +601,12 @@ public class ChunkWriter {
 						}
 						zeroSequenceLen = 0;
 					}
-					
+				
 					//write current coef
 					huffman.writeCode(bw,ac);
 				}
 			}
-			
+		
 			//manage reminded zero sequence
 			if(zeroSequenceLen > 0) {
 				if(zeroSequenceLen > maxZeroSequenceLen) {
@@ -165,10 +618,9 @@ public class ChunkWriter {
 				}
 				zeroSequenceLen = 0;
 			}
-		
+
 		}
-		
-		return baos.toByteArray();
+
 	}
 	
 }
@@ -7,6 +7,7 @@ import java.util.Map.Entry;
 public class Histogram {
 
 	private final Object lock = new Object();		//lock to protect update operations 
+	private final boolean shared;					//false : used by one thread at a time (e.g. a worker histogram merged at the end), updates without lock
 	private final int[] histo;						//for regular values
 	private final int offset;						//offset to map signed values to int array
 	private final HashMap<Integer, Integer> map;	//map for values that cannot be handle by int array
@@ -15,9 +16,14 @@ public class Histogram {
  
 	
 	public Histogram(int size, int offset) {
+		this(size, offset, true);
+	}
+	
+	public Histogram(int size, int offset, boolean shared) {
 		this.histo = new int[size];
 		this.offset = offset;
 		this.map = new HashMap<>();
+		this.shared = shared;
 	}
 	
 	public void update(int sample) {
@@ -25,34 +31,72 @@ public class Histogram {
 	}
 	
 	public void update(int sample, int occurence) {
+		if(this.shared) {
+			synchronized (this.lock) {
+				add(sample, occurence);
+			}
+		}
+		else {
+			add(sample, occurence);
+		}
+	}
+	
+	private void add(int sample, int occurence) {
 		
 		int idx = this.offset + sample;
 		
 		if(0 < idx && idx < histo.length) {
-			synchronized (this.lock) {
-				if(this.histo[idx] == 0) {
-					this.symbolCount++;
-				}
-				this.histo[idx] += occurence;
-				this.totalCount += occurence;
+			if(this.histo[idx] == 0) {
+				this.symbolCount++;
 			}
+			this.histo[idx] += occurence;
+			this.totalCount += occurence;
 		}
 		else {
-			synchronized (this.lock) {
-				Integer k = new Integer(sample);
-				Integer v = this.map.get(k);
-				if(v == null) {
-					this.symbolCount++;
-					this.map.put(k,new Integer(occurence));
-				}
-				else {
-					this.map.put(k,new Integer(v.intValue() + occurence));
-				}
-				this.totalCount += occurence;
+			Integer k = new Integer(sample);
+			Integer v = this.map.get(k);
+			if(v == null) {
+				this.symbolCount++;
+				this.map.put(k,new Integer(occurence));
+			}
+			else {
+				this.map.put(k,new Integer(v.intValue() + occurence));
+			}
+			this.totalCount += occurence;
+		}
+		
+	}
+	
+	//add the samples of histogram (same size and offset) to this one
+	//a non shared histogram must no longer be updated (e.g. its worker task is completed)
+	public void merge(Histogram histogram) {
+		
+		if(histogram.histo.length != this.histo.length || histogram.offset != this.offset) {
+			throw new IllegalArgumentException("Histogram size / offset mismatch");
+		}
+		
+		if(histogram.shared) {
+			synchronized (histogram.lock) {
+				mergeFrom(histogram);
 			}
 		}
+		else {
+			mergeFrom(histogram);
+		}
+	}
+	
+	private void mergeFrom(Histogram histogram) {
 		
+		for(int idx = 0 ; idx < histogram.histo.length ; idx++) {
+			int occurence = histogram.histo[idx];
+			if(occurence > 0) {
+				update(idx - this.offset, occurence);
+			}
+		}
 		
+		for (Entry<Integer, Integer> entry : histogram.map.entrySet()) {
+			update(entry.getKey().intValue(), entry.getValue().intValue());
+		}
 	}
 	
 	public int getSymbolCount() {
@@ -75,6 +119,10 @@ public class Histogram {
 	}
 	
 	public Huffman getHuffman() {
+		return getHuffman(Huffman.maxCodeLength);
+	}
+	
+	public Huffman getHuffman(int maxCodeLength) {
 		
 		Huffman huffman = new Huffman();
 		
@@ -98,7 +146,7 @@ public class Histogram {
 			
 		}
 		
-		huffman.buildTree();
+		huffman.buildTree(maxCodeLength);
 		return huffman;
 	}
 	
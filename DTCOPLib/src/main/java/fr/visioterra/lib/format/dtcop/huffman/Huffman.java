@@ -1,25 +1,38 @@
 package fr.visioterra.lib.format.dtcop.huffman;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
+import java.util.PriorityQueue;
 import java.util.TreeMap;
-import java.util.TreeSet;
 
 import fr.visioterra.lib.io.bit.BitReader;
 import fr.visioterra.lib.io.bit.BitWriter;
 
 public class Huffman {
 	
+	private static final int lookupBits = 11;		//number of bits resolved by the first level of the lookup table
+	private static final int codeOffset = 32768;	//offset of symbols in the code arrays (16 bits signed symbols)
+	private static final int maxCodeSymbol = 65535;	//greatest symbol of the code arrays (17 bits signed symbols of the run-length alphabet)
+	
+	//if true, readSymbol() uses the lookup table instead of walking the tree bit per bit
+	public static boolean tableDecoder = true;
+	
+	//if true, writeCode() uses the code arrays instead of the symbols map
+	public static boolean tableEncoder = true;
+	
+	//default maximum code length of the built tables (codes are written as int, decoded by the lookup table up to 31 bits)
+	public static int maxCodeLength = 24;
+	
 	private final LinkedHashMap<Integer, Node> symbols;
 	private Node root = null;
 	private int symbolCount = -1; 
-	
-	private Node merge(Node n1, Node n2, int s) {
-		int w = n1.getWeight() + n2.getWeight();
-		Node n = new Node(s, w, n1, n2);
-		n1.incrDepth();
-		n2.incrDepth();
-		return n;
-	}
+	private int[] lookup = null;		//leaf : (symbol << 8) | length / link : (sub table offset << 8) | 0x80 | sub table bits
+	private int lookupSize = 0;
+	private int[] codes = null;			//code of (symbol + codeOffset)
+	private byte[] lengths = null;		//code length of (symbol + codeOffset), -1 if not in alphabet (or not in the arrays)
 	
 	public Huffman() {
 		this.symbols = new LinkedHashMap<>();
@@ -35,34 +48,317 @@ public class Huffman {
 		symbols.put(symbol, node);
 	}
 	
+	//Huffman code lengths of the leaves, built with a heap (same merge order as the previous TreeSet build)
+	private static int[] codeLengths(Node[] leaves) {
+		
+		int n = leaves.length;
+		long[] weight = new long[2 * n - 1];
+		int[] key = new int[2 * n - 1];
+		int[] parent = new int[2 * n - 1];
+		
+		PriorityQueue<Integer> heap = new PriorityQueue<>(n, new Comparator<Integer>() {
+			@Override public int compare(Integer i1, Integer i2) {
+				if(weight[i1] != weight[i2]) {
+					return Long.compare(weight[i1], weight[i2]);
+				}
+				return Integer.compare(key[i1], key[i2]);
+			}
+		});
+		
+		for(int i = 0 ; i < n ; i++) {
+			weight[i] = leaves[i].getWeight();
+			key[i] = leaves[i].getSymbol();
+			heap.add(i);
+		}
+		
+		//merged nodes are keyed from Integer.MAX_VALUE down, as the previous merged nodes symbols
+		for(int i = n ; i < 2 * n - 1 ; i++) {
+			int n1 = heap.poll();
+			int n2 = heap.poll();
+			weight[i] = weight[n1] + weight[n2];
+			key[i] = Integer.MAX_VALUE - (i - n);
+			parent[n1] = i;
+			parent[n2] = i;
+			heap.add(i);
+		}
+		
+		//parents are created after their children : depths from the root down
+		int[] depth = new int[2 * n - 1];
+		for(int i = 2 * n - 3 ; i >= 0 ; i--) {
+			depth[i] = depth[parent[i]] + 1;
+		}
+		
+		return Arrays.copyOf(depth, n);
+	}
+	
+	//package-merge : optimal code lengths of the leaves with a maximum length of maxLen bits
+	private static int[] limitedCodeLengths(Node[] leaves, int maxLen) {
+		
+		int n = leaves.length;
+		if(n > (1L << maxLen)) {
+			throw new IllegalArgumentException("Too many symbols (" + n + ") for a " + maxLen + " bits code length limit");
+		}
+		
+		//leaves sorted by weight
+		Integer[] order = new Integer[n];
+		for(int i = 0 ; i < n ; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (i1, i2) -> Integer.compare(leaves[i1].getWeight(), leaves[i2].getWeight()));
+		
+		//items : leaf (item index < n) or package of two items of the previous level
+		ArrayList<long[]> items = new ArrayList<>();		//{weight, left item, right item}
+		int[] list = new int[n];
+		for(int i = 0 ; i < n ; i++) {
+			items.add(new long[] {leaves[order[i]].getWeight(), -1, -1});
+			list[i] = i;
+		}
+		
+		for(int level = 1 ; level < maxLen ; level++) {
+			
+			//package pairs of the current list and merge them with the leaves (leaves first on ties)
+			int[] merged = new int[n + list.length / 2];
+			int l = 0;
+			int p = 0;
+			int m = 0;
+			while(l < n || p + 1 < list.length) {
+				long wl = l < n ? items.get(l)[0] : Long.MAX_VALUE;
+				long wp = p + 1 < list.length ? items.get(list[p])[0] + items.get(list[p + 1])[0] : Long.MAX_VALUE;
+				if(wl <= wp) {
+					merged[m++] = l++;
+				}
+				else {
+					items.add(new long[] {wp, list[p], list[p + 1]});
+					merged[m++] = items.size() - 1;
+					p += 2;
+				}
+			}
+			list = Arrays.copyOf(merged, m);
+		}
+		
+		//code length of a leaf = number of times it appears in the 2n-2 first items
+		int[] count = new int[n];
+		ArrayDeque<Integer> stack = new ArrayDeque<>();
+		for(int i = 0 ; i < 2 * n - 2 ; i++) {
+			stack.push(list[i]);
+		}
+		while(stack.isEmpty() == false) {
+			int i = stack.pop();
+			if(i < n) {
+				count[order[i]]++;
+				continue;
+			}
+			long[] item = items.get(i);
+			stack.push((int)item[1]);
+			stack.push((int)item[2]);
+		}
+		
+		return count;
+	}
+	
 	public void buildTree() {
+		buildTree(Huffman.maxCodeLength);
+	}
+	
+	public void buildTree(int maxCodeLength) {
+		
+		if(maxCodeLength < 1 || 31 < maxCodeLength) {
+			throw new IllegalArgumentException("Invalid max code length (" + maxCodeLength + ")");
+		}
 		
 		if(this.root == null) {
 			
-			TreeSet<Node> set = new TreeSet<>(); 
-
-			this.symbolCount = 0;
-			for(Node node : this.symbols.values()) {
-				set.add(node);
-//				this.sortedMap.put(node.getSymbol(),node);
-				this.symbolCount++;
+			Node[] leaves = this.symbols.values().toArray(new Node[0]);
+			this.symbolCount = leaves.length;
+			
+			if(leaves.length == 0) {
+				throw new IllegalStateException("Empty alphabet");
 			}
-
-			int idx = Integer.MAX_VALUE;
-			while(set.size() > 1) {
-
-				Node n1 = set.pollFirst();
-				Node n2 = set.pollFirst();
-				Node n = merge(n1, n2, idx--);
-				set.add(n);
+			
+			if(leaves.length == 1) {
+				this.root = leaves[0];
+				this.root.updateCode(0);
+			}
+			else {
+				
+				int[] lengths = codeLengths(leaves);
+				
+				int maxLen = 0;
+				for(int len : lengths) {
+					maxLen = Math.max(maxLen, len);
+				}
+				
+				if(maxLen > maxCodeLength) {
+					lengths = limitedCodeLengths(leaves, maxCodeLength);
+				}
+				
+				for(int i = 0 ; i < leaves.length ; i++) {
+					leaves[i].setDepth(lengths[i]);
+				}
+				
+				//canonical codes : sorted by (length, symbol)
+				Arrays.sort(leaves, new Comparator<Node>() {
+					@Override public int compare(Node n1, Node n2) {
+						if(n1.getDepth() != n2.getDepth()) {
+							return Integer.compare(n1.getDepth(), n2.getDepth());
+						}
+						return Integer.compare(n1.getSymbol(), n2.getSymbol());
+					}
+				});
+				
+				int code = 0;
+				int len = leaves[0].getDepth();
+				for(Node leaf : leaves) {
+					code = code << (leaf.getDepth() - len);
+					len = leaf.getDepth();
+					leaf.setCode(code);
+					code++;
+				}
+				
+				this.root = canonicalNode(leaves, 0, leaves.length, 0);
+			}
+			
+			buildLookup();
+			buildCodes();
+		}
+		
+	}
+	
+	//rebuild the sub tree of the leaves[from,to[ sharing the same depth bits prefix (leaves sorted by canonical code)
+	private static Node canonicalNode(Node[] leaves, int from, int to, int depth) {
+		
+		if(to - from == 1 && leaves[from].getDepth() == depth) {
+			return leaves[from];
+		}
+		
+		int split = from;
+		while(split < to && ((leaves[split].getCode() >>> (leaves[split].getDepth() - depth - 1)) & 1) == 0) {
+			split++;
+		}
+		
+		if(split == from || split == to) {
+			throw new IllegalStateException("Invalid canonical code");
+		}
+		
+		Node left  = canonicalNode(leaves, from, split, depth + 1);
+		Node right = canonicalNode(leaves, split, to, depth + 1);
+		return new Node(Integer.MAX_VALUE, left.getWeight() + right.getWeight(), left, right);
+	}
+	
+	private int allocLookup(int size) {
+		int offset = this.lookupSize;
+		if(this.lookup.length < offset + size) {
+			this.lookup = Arrays.copyOf(this.lookup, Math.max(this.lookup.length * 2, offset + size));
+		}
+		this.lookupSize += size;
+		return offset;
+	}
+	
+	//fill a lookup table of 2^bits entries for the leaves[from,to[ (sorted by left aligned code) once consumed bits are skipped
+	private int fillLookup(Node[] leaves, int from, int to, int consumed, int bits) {
+		
+		int offset = allocLookup(1 << bits);
+		
+		int i = from;
+		while(i < to) {
+			
+			Node leaf = leaves[i];
+			int rem = leaf.getDepth() - consumed;
+			
+			if(rem <= bits) {
+				int idx = (leaf.getCode() & ((1 << rem) - 1)) << (bits - rem);
+				int entry = (leaf.getSymbol() << 8) | rem;
+				for(int j = 0 ; j < (1 << (bits - rem)) ; j++) {
+					this.lookup[offset + idx + j] = entry;
+				}
+				i++;
+			}
+			else {
+				//codes longer than the table : link to a sub table
+				int idx = (leaf.getCode() >>> (rem - bits)) & ((1 << bits) - 1);
+				int maxRem = rem;
+				int j = i + 1;
+				while(j < to) {
+					int r = leaves[j].getDepth() - consumed;
+					if(r <= bits || ((leaves[j].getCode() >>> (r - bits)) & ((1 << bits) - 1)) != idx) {
+						break;
+					}
+					maxRem = Math.max(maxRem, r);
+					j++;
+				}
+				
+				int subBits = Math.min(maxRem - bits, lookupBits);
+				int subOffset = fillLookup(leaves, i, j, consumed + bits, subBits);
+				this.lookup[offset + idx] = (subOffset << 8) | 0x80 | subBits;
+				i = j;
+			}
+		}
+		
+		return offset;
+	}
+	
+	//dense code arrays for 16 bits signed symbols (and positive 17 bits ones in use) with codes up to 32 bits, others are left to the symbols map
+	private void buildCodes() {
+		
+		int maxSymbol = codeOffset - 1;
+		for(Node leaf : this.symbols.values()) {
+			if(leaf.getSymbol() <= maxCodeSymbol) {
+				maxSymbol = Math.max(maxSymbol, leaf.getSymbol());
+			}
+		}
+		
+		this.codes = new int[codeOffset + maxSymbol + 1];
+		this.lengths = new byte[codeOffset + maxSymbol + 1];
+		Arrays.fill(this.lengths, (byte)-1);
+		
+		for(Node leaf : this.symbols.values()) {
+			int idx = leaf.getSymbol() + codeOffset;
+			if(0 <= idx && idx < this.codes.length && leaf.getDepth() <= 32) {
+				this.codes[idx] = leaf.getCode();
+				this.lengths[idx] = (byte)leaf.getDepth();
 			}
-
-			this.root = set.first();
-			this.root.updateCode(0);
 		}
 		
 	}
 	
+	//build the multi-level lookup table from the leaves codes (canonical or not)
+	private void buildLookup() {
+		
+		if(this.root.isLeaf()) {
+			this.lookup = null;
+			return;
+		}
+		
+		//codes longer than an int or symbols not fitting the entry layout are left to the tree decoder
+		Node[] leaves = this.symbols.values().toArray(new Node[0]);
+		int maxLen = 0;
+		for(Node leaf : leaves) {
+			maxLen = Math.max(maxLen, leaf.getDepth());
+			if(leaf.getSymbol() < -(1 << 23) || (1 << 23) <= leaf.getSymbol()) {
+				this.lookup = null;
+				return;
+			}
+		}
+		
+		if(maxLen > 31) {
+			this.lookup = null;
+			return;
+		}
+		
+		final int shift = maxLen;
+		Arrays.sort(leaves, new Comparator<Node>() {
+			@Override public int compare(Node n1, Node n2) {
+				long c1 = ((long)n1.getCode()) << (shift - n1.getDepth());
+				long c2 = ((long)n2.getCode()) << (shift - n2.getDepth());
+				return Long.compare(c1, c2);
+			}
+		});
+		
+		this.lookup = new int[1 << lookupBits];
+		this.lookupSize = 0;
+		fillLookup(leaves, 0, leaves.length, 0, lookupBits);
+	}
+	
 	public void print() {
 		
 		TreeMap<Integer,Node> sortedMap = new TreeMap<>();
@@ -78,6 +374,10 @@ public class Huffman {
 	public int getSymbolCount() {
 		return this.symbolCount;
 	}
+	
+	public boolean contains(int symbol) {
+		return this.symbols.containsKey(symbol);
+	}
 
 	public int getSymbolLength(int symbol) {
 		
@@ -120,6 +420,13 @@ public class Huffman {
 	//write code
 	public int writeCode(BitWriter bw, int symbol) throws Exception {
 		
+		int idx = symbol + codeOffset;
+		if(tableEncoder && this.codes != null && 0 <= idx && idx < this.codes.length && this.lengths[idx] >= 0) {
+			int len = this.lengths[idx];
+			bw.writeBits(this.codes[idx], len);
+			return len;
+		}
+		
 		Node node = this.symbols.get(symbol);
 		if(node == null) {
 			throw new IllegalArgumentException("symbol \"" + symbol + "\" not in alphabet");
@@ -131,6 +438,16 @@ public class Huffman {
 	//write code, n times
 	public int writeCode(BitWriter bw, int symbol, int count) throws Exception {
 		
+		int idx = symbol + codeOffset;
+		if(tableEncoder && this.codes != null && 0 <= idx && idx < this.codes.length && this.lengths[idx] >= 0) {
+			int code = this.codes[idx];
+			int len = this.lengths[idx];
+			for(int i = 0 ; i < count ; i++) {
+				bw.writeBits(code, len);
+			}
+			return len * count;
+		}
+		
 		Node node = this.symbols.get(symbol);
 		if(node == null) {
 			throw new IllegalArgumentException("symbol \"" + symbol + "\" not in alphabet");
@@ -160,11 +477,12 @@ public class Huffman {
 		}
 		else {
 			
-			if(symbolLen != 16) {
-				throw new IllegalArgumentException("Tuned for 16bits symbols");
+			if(symbolLen < 16 || 17 < symbolLen) {
+				throw new IllegalArgumentException("Tuned for 16bits or 17bits symbols");
 			}
 			
-			int symbol = (short)br.readBits(symbolLen);
+			//signed symbols
+			int symbol = (int)(br.readBits(symbolLen) << (32 - symbolLen)) >> (32 - symbolLen);
 			this.symbolCount++;
 			
 			Node leaf  = new Node(symbol,-1);
@@ -181,6 +499,8 @@ public class Huffman {
 	public Huffman readTable(BitReader br, int symbolCount, int symbolLen) throws Exception {
 		this.symbolCount = 0;
 		this.root = readNode(br, symbolCount, symbolLen, 0, 0);
+		buildLookup();
+		buildCodes();
 		return this;
 	}
 	
@@ -204,7 +524,32 @@ public class Huffman {
 	
 	//read symbol
 	public int readSymbol(BitReader br) throws Exception {
-		return readSymbol(this.root,br);
+		
+		if(tableDecoder == false || this.lookup == null) {
+			return readSymbol(this.root,br);
+		}
+		
+		int offset = 0;
+		int bits = lookupBits;
+		
+		while(true) {
+			
+			int entry = this.lookup[offset + (int)br.peekBits(bits)];
+			
+			if((entry & 0x80) == 0) {
+				int len = entry & 0x7F;
+				if(len == 0) {
+					throw new IllegalArgumentException("Invalid Huffman code");
+				}
+				br.skipBits(len);
+				return entry >> 8;
+			}
+			
+			br.skipBits(bits);
+			offset = entry >>> 8;
+			bits = entry & 0x7F;
+		}
+		
 	}
 	
 }
@@ -1,13 +1,32 @@
 package fr.visioterra.lib.format.dtcop.shard;
 
+import java.util.Arrays;
+
 import fr.visioterra.lib.format.dtcop.chunk.Chunk;
 import ucar.ma2.Array;
 import ucar.ma2.DataType;
 import ucar.ma2.Index;
+import ucar.ma2.IndexIterator;
 
 public class Shard {
 	
+	//fill of the part of edge chunks outside the shard (discarded by the decoder)
+	public enum Padding {
+		ZERO,			//0 (artificial step at the shard edge)
+		REPLICATE,		//last valid sample
+		SYMMETRIC		//half sample mirror (a b c | c b a | a b c ...), the even extension implied by the DCT
+	}
+	
+	//default padding of the shards (see Shard(Array, int[], Padding))
+	public static Padding padding = Padding.SYMMETRIC;
+	
+	//copy whole innermost rows from the row-major storage (false => per sample Index copy)
+	public static boolean bulkCopy = true;
+	
 	private final Array array;
+	private final Padding edgePadding;
+	private final Object storage;			//row-major samples of array : its backing storage, or a copy if array is not canonical (e.g. a section)
+	private final int[] stride;
 	private final int[] shape;
 	private final int[] chunkShape;
 	private final int[] numChunk;
@@ -79,19 +98,238 @@ public class Shard {
 		
 	}
 	
+	//copy len samples from src[srcPos] to dst[dstPos] with the getFloat() / setInt(getInt()) conversion of the Index copy, false if not supported
+	private static boolean copyRow(Object src, boolean unsigned, int srcPos, Object dst, int dstPos, int len) {
+		
+		if(dst instanceof float[]) {
+			float[] out = (float[])dst;
+			if(src instanceof float[]) {
+				System.arraycopy(src, srcPos, dst, dstPos, len);
+			}
+			else if(src instanceof short[]) {
+				short[] in = (short[])src;
+				if(unsigned) {
+					for(int i = 0 ; i < len ; i++) { out[dstPos + i] = in[srcPos + i] & 0xFFFF; }
+				}
+				else {
+					for(int i = 0 ; i < len ; i++) { out[dstPos + i] = in[srcPos + i]; }
+				}
+			}
+			else if(src instanceof byte[]) {
+				byte[] in = (byte[])src;
+				if(unsigned) {
+					for(int i = 0 ; i < len ; i++) { out[dstPos + i] = in[srcPos + i] & 0xFF; }
+				}
+				else {
+					for(int i = 0 ; i < len ; i++) { out[dstPos + i] = in[srcPos + i]; }
+				}
+			}
+			else if(src instanceof int[]) {
+				int[] in = (int[])src;
+				if(unsigned) {
+					for(int i = 0 ; i < len ; i++) { out[dstPos + i] = in[srcPos + i] & 0xFFFFFFFFL; }
+				}
+				else {
+					for(int i = 0 ; i < len ; i++) { out[dstPos + i] = in[srcPos + i]; }
+				}
+			}
+			else if(src instanceof double[]) {
+				double[] in = (double[])src;
+				for(int i = 0 ; i < len ; i++) { out[dstPos + i] = (float)in[srcPos + i]; }
+			}
+			else {
+				return false;
+			}
+			return true;
+		}
+		
+		//integer types with the same storage : setInt(getInt()) keeps the bits (signed or unsigned)
+		if(	(dst instanceof short[] && src instanceof short[]) ||
+			(dst instanceof byte[]  && src instanceof byte[])  ||
+			(dst instanceof int[]   && src instanceof int[])) {
+			System.arraycopy(src, srcPos, dst, dstPos, len);
+			return true;
+		}
+		
+		return false;
+	}
+	
+	//copy the rows of the [offInput, offInput+len[ region into the chunk storage (zero padding is left as is)
+	private boolean copyRows(int[] offInput, int[] len, Object dst) {
+		
+		final int rank = this.shape.length;
+		final boolean unsigned = this.array.getDataType().isUnsigned();
+		final int rowLen = len[rank-1];
+		
+		int[] chunkStride = new int[rank];
+		chunkStride[rank-1] = 1;
+		for(int d = rank - 2 ; d >= 0 ; d--) {
+			chunkStride[d] = chunkStride[d+1] * this.chunkShape[d+1];
+		}
+		
+		int[] pos = new int[rank];
+		while(true) {
+			
+			int srcPos = 0;
+			int dstPos = 0;
+			for(int d = 0 ; d < rank ; d++) {
+				srcPos += (offInput[d] + pos[d]) * this.stride[d];
+				dstPos += pos[d] * chunkStride[d];
+			}
+			
+			if(copyRow(this.storage, unsigned, srcPos, dst, dstPos, rowLen) == false) {
+				return false;
+			}
+			
+			//next row
+			int d = rank - 2;
+			while(d >= 0 && ++pos[d] == len[d]) {
+				pos[d] = 0;
+				d--;
+			}
+			if(d < 0) {
+				return true;
+			}
+		}
+	}
+	
+	//position of the valid sample used to fill position p (p >= len) in a dimension of valid length len
+	private static int padPosition(Padding padding, int p, int len) {
+		if(padding == Padding.REPLICATE) {
+			return len - 1;
+		}
+		p = p % (2 * len);
+		return p < len ? p : 2 * len - 1 - p;
+	}
+	
+	//fill the padded part of a chunk (valid part in [0,len[), one dimension after the other from the innermost one
+	private static void pad(Array output, int[] chunkShape, int[] len, Padding padding) {
+		
+		final int rank = chunkShape.length;
+		final int size = (int)output.getSize();
+		
+		int[] stride = new int[rank];
+		stride[rank-1] = 1;
+		for(int d = rank - 2 ; d >= 0 ; d--) {
+			stride[d] = stride[d+1] * chunkShape[d+1];
+		}
+		
+		int[] pos = new int[rank];
+		for(int d = rank - 1 ; d >= 0 ; d--) {
+			
+			if(len[d] == chunkShape[d]) {
+				continue;
+			}
+			
+			//dimensions > d are already filled, dimensions < d are filled later from the valid part only
+			Arrays.fill(pos, 0);
+			for(int i = 0 ; i < size ; i++) {
+				
+				boolean fill = pos[d] >= len[d];
+				for(int e = 0 ; fill && e < d ; e++) {
+					fill = pos[e] < len[e];
+				}
+				
+				if(fill) {
+					int src = i + (padPosition(padding, pos[d], len[d]) - pos[d]) * stride[d];
+					output.setDouble(i, output.getDouble(src));
+				}
+				
+				//next position
+				for(int e = rank - 1 ; e >= 0 && ++pos[e] == chunkShape[e] ; e--) {
+					pos[e] = 0;
+				}
+			}
+		}
+	}
+	
+	//copy src (logical order) at the origin of dst (row-major storage, not smaller than src in any dimension)
+	private static void copyCorner(Array src, Array dst) {
+		
+		final int[] srcShape = src.getShape();
+		final int[] dstShape = dst.getShape();
+		final int rank = srcShape.length;
+		
+		int[] pos = new int[rank];
+		IndexIterator it = src.getIndexIterator();
+		while(it.hasNext()) {
+			int p = 0;
+			for(int d = 0 ; d < rank ; d++) {
+				p = p * dstShape[d] + pos[d];
+			}
+			dst.setDouble(p, it.getDoubleNext());
+			
+			//next position
+			for(int d = rank - 1 ; d >= 0 && ++pos[d] == srcShape[d] ; d--) {
+				pos[d] = 0;
+			}
+		}
+	}
+	
+	/**
+	 * Edge block of a larger array (e.g. an edge zarr chunk written as one shard) completed to shape :
+	 * array (the valid part) is copied at the origin, the chunks of chunkShape holding valid samples are padded as the edge chunks of a shard,
+	 * the chunks without valid sample are left to 0 (constant chunks).
+	 * Completed with a fill value instead, the block would have a step at the edge of the valid part.
+	 */
+	public static Array padEdge(Array array, int[] shape, int[] chunkShape, Padding padding) {
+		
+		int[] len = array.getShape();
+		if(len.length != shape.length || len.length != chunkShape.length) {
+			throw new IllegalArgumentException("Invalid rank (" + len.length + " / " + shape.length + " / " + chunkShape.length + ")");
+		}
+		
+		//valid part rounded up to the chunk grid
+		int[] ext = new int[len.length];
+		for(int d = 0 ; d < len.length ; d++) {
+			if(len[d] < 1 || shape[d] < len[d]) {
+				throw new IllegalArgumentException("Invalid valid part " + Arrays.toString(len) + " of " + Arrays.toString(shape));
+			}
+			ext[d] = Math.min(shape[d], (len[d] + chunkShape[d] - 1) / chunkShape[d] * chunkShape[d]);
+		}
+		
+		Array block = Array.factory(array.getDataType(), ext);
+		copyCorner(array, block);
+		if(padding != Padding.ZERO) {
+			pad(block, ext, len, padding);
+		}
+		
+		Array output = Array.factory(array.getDataType(), shape);
+		copyCorner(block, output);
+		return output;
+	}
+	
 //	public Shard(Array array, int[] chunkShape) {
 //		this(array,chunkShape,1.0,0.0);
 //	}
 	
 	public Shard(Array array, int[] chunkShape) { //, double scaleFactor, double addOffset) {
+		this(array, chunkShape, padding);
+	}
+	
+	public Shard(Array array, int[] chunkShape, Padding padding) {
 
+		if(padding == null) {
+			throw new IllegalArgumentException("Invalid padding (null)");
+		}
+		
 		this.array = array;
+		this.edgePadding = padding;
 		this.shape = array.getShape();
 		
 		if(shape.length != chunkShape.length) {
 			throw new IllegalArgumentException();
 		}
 		
+		this.storage = array.get1DJavaArray(array.getDataType());
+		this.stride = new int[shape.length];
+		if(shape.length > 0) {
+			this.stride[shape.length-1] = 1;
+			for(int d = shape.length - 2 ; d >= 0 ; d--) {
+				this.stride[d] = this.stride[d+1] * shape[d+1];
+			}
+		}
+		
 		this.chunkShape = chunkShape;
 		this.numChunk = new int[chunkShape.length];
 		for(int i = 0 ; i < chunkShape.length ; i++) {
@@ -127,7 +365,29 @@ public class Shard {
 		return this.numChunk[dim];
 	}
 	
+	public Padding getPadding() {
+		return this.edgePadding;
+	}
+	
 	public Chunk getChunk(int[] chunk, DataType dataType) {
+		Chunk output = copyChunk(chunk, dataType);
+		
+		if(this.edgePadding != Padding.ZERO) {
+			int[] len = new int[this.shape.length];
+			boolean edge = false;
+			for(int d = 0 ; d < len.length ; d++) {
+				len[d] = Math.min(this.chunkShape[d], this.shape[d] - chunk[d] * this.chunkShape[d]);
+				edge |= len[d] < this.chunkShape[d];
+			}
+			if(edge) {
+				pad(output.getArray(), this.chunkShape, len, this.edgePadding);
+			}
+		}
+		
+		return output;
+	}
+	
+	private Chunk copyChunk(int[] chunk, DataType dataType) {
 		
 		int[] shape = this.array.getShape();
 		
@@ -140,7 +400,7 @@ public class Shard {
 	    	int iMin = chunk[d] * this.chunkShape[d];
 	    	int iMax = iMin + this.chunkShape[d] - 1;
 	    	
-	    	if(iMax > shape[d]) {
+	    	if(iMax >= shape[d]) {
 	    		iMax = shape[d] - 1;
 	    	}
 	    	
@@ -154,6 +414,10 @@ public class Shard {
 	    Array output = Array.factory(dataType, this.chunkShape);
 	    Index idxOutput = output.getIndex();
 	    
+	    if(bulkCopy && copyRows(offInput, len, output.getStorage())) {
+	    	return new Chunk(output);
+	    }
+	    
 	    if( (dataType == DataType.BYTE)  || (dataType == DataType.SHORT)  || (dataType == DataType.INT) ||
 	    	(dataType == DataType.UBYTE) || (dataType == DataType.USHORT) || (dataType == DataType.UINT) ) {
 	    	copyInt(this.array, idxInput, offInput, output, idxOutput, offOutput, 0, len);
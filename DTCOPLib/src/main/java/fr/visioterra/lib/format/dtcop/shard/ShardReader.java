@@ -2,9 +2,16 @@ package fr.visioterra.lib.format.dtcop.shard;
 
 import java.io.File;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import fr.visioterra.lib.cache.KVCacheMap;
 import fr.visioterra.lib.format.dtcop.chunk.Cell;
@@ -13,8 +20,10 @@ import fr.visioterra.lib.format.dtcop.chunk.ChunkWriter;
 import fr.visioterra.lib.format.dtcop.huffman.Huffman;
 import fr.visioterra.lib.format.dtcop.quantization.QuantChunk;
 import fr.visioterra.lib.io.bit.BitReader;
+import fr.visioterra.lib.io.bit.ByteBufferBitReader;
 import fr.visioterra.lib.io.stream.ByteArrayInputStream;
 import fr.visioterra.lib.io.stream.StreamTools;
+import ucar.ma2.Array;
 import ucar.ma2.DataType;
 
 
@@ -23,6 +32,7 @@ public class ShardReader implements AutoCloseable {
 	
 	private static final KVCacheMap<PolynomKey, QuantChunk> quantChunkCache = new KVCacheMap<>(false,1000);
 	private static final Object cacheLock = new Object(); 
+	private static final ThreadLocal<float[]> decodeBuffer = new ThreadLocal<>();
 	
 	
 	private static class BlockEntry {
@@ -72,23 +82,27 @@ public class ShardReader implements AutoCloseable {
 	
 	
 	public static boolean debug = false;
+	public static int maxReadGap = 64 * 1024;	//default of setMaxReadGap for new readers
 	
-	private final Object lock = new Object();
-	private final RandomAccessFile raf;
+	private final FileChannel channel;			//null for an in-memory shard
+	private final ByteBuffer buffer;			//memory-mapped file or in-memory shard, null for positional reads
 	private final HashMap<Byte,BlockEntry> blockEntryMap = new HashMap<>();
 //	private final DataType dataType;
 	private final int[] shape;
 	private final int[] chunkShape;
 	private final int[] numChunk;
-	private final Cell[] zigzagOrder;
+	private final int[] zigzagIndex;			//zigzag order as row-major positions in a chunk
+	private final int[] reducedScanEnd = new int[32];	//reduction factor 2^i : scan position after the last coefficient kept (0 if not computed yet)
+	private final boolean runLength;			//version 0x01 and later : AC zero runs as run-length symbols
 	private final Huffman huffman;
 	private final int[] chunksSize;
 	private final long[] chunksOffset;
 	private final long chunksStartPosition;
+	private volatile int readGap = maxReadGap;	//batch reads : max number of unused bytes read between two requested chunks
 	
 	
 	
- 	private static void readMagic(InputStream is) throws Exception {
+ 	private static int readMagic(InputStream is) throws Exception {
 		byte[] head = new byte[5];
 		is.read(head);
 		
@@ -100,10 +114,11 @@ public class ShardReader implements AutoCloseable {
 		
 		int version = is.read();
 		
-		if(version != ShardWriter.idVersion) {
-			throw new IllegalArgumentException("Invalid version (" + version + " != " + ShardWriter.idVersion);
+		if(version != ShardWriter.idVersion && version != ShardWriter.idVersionRunLength && version != ShardWriter.idVersionConstant) {
+			throw new IllegalArgumentException("Invalid version (" + version + ")");
 		}
 		
+		return version;
 	}
 	
 	private static int readHeaderTag(InputStream is, int idBlock) throws Exception {
@@ -181,24 +196,48 @@ public class ShardReader implements AutoCloseable {
 		
 	}
 	
-	private ByteArrayInputStream readBlock(RandomAccessFile raf, byte blockId) throws Exception {
-		BlockEntry be = this.blockEntryMap.get(blockId);
-		raf.seek(be.getOffset());
-		byte[] array = new byte[(int)be.getSize()];
-		raf.readFully(array);
-		return new ByteArrayInputStream(array);
+	//positional read (or slice of the buffer) : no shared file pointer, so no lock between concurrent readers
+	private ByteBuffer readBytes(long offset, int size) throws Exception {
+		
+		if(this.buffer != null) {
+			if(offset + size > this.buffer.limit()) {
+				throw new IllegalArgumentException("EOF reached");
+			}
+			ByteBuffer bb = this.buffer.duplicate();
+			bb.position((int)offset);
+			bb.limit((int)offset + size);
+			return bb.slice();
+		}
+		
+		ByteBuffer bb = ByteBuffer.allocate(size);
+		long pos = offset;
+		while(bb.hasRemaining()) {
+			int len = this.channel.read(bb, pos);
+			if(len < 0) {
+				throw new IllegalArgumentException("EOF reached");
+			}
+			pos += len;
+		}
+		bb.flip();
+		return bb;
 	}
 	
-	private ByteArrayInputStream readBlock(RandomAccessFile raf, BlockEntry be) throws Exception {
-		byte[] array = new byte[(int)be.getSize()];
-		synchronized (this.lock) {
-			raf.seek(be.getOffset());
-			raf.readFully(array);
-		}
+	private ByteBuffer readBytes(BlockEntry be) throws Exception {
+		return readBytes(be.getOffset(), (int)be.getSize());
+	}
+	
+	private ByteArrayInputStream readBlock(BlockEntry be) throws Exception {
+		ByteBuffer bb = readBytes(be);
+		byte[] array = new byte[bb.remaining()];
+		bb.get(array);
 		return new ByteArrayInputStream(array);
 	}
 	
-	private Chunk _getChunk(int[] chunkIdx, double scaleFactor, double addOffset, boolean round, DataType roundDataType) throws Exception {
+	private ByteArrayInputStream readBlock(byte blockId) throws Exception {
+		return readBlock(this.blockEntryMap.get(blockId));
+	}
+	
+	private int chunkIndex(int[] chunkIdx) {
 
 		//check arg
 		if(chunkIdx.length != this.numChunk.length) {
@@ -218,128 +257,481 @@ public class ShardReader implements AutoCloseable {
 		
 //		System.out.println("getChunk(" + Arrays.toString(chunkIdx) + ") => " + cidx + " / " + this.chunksOffset.length);
 		
+		return cidx;
+	}
+	
+	//read the bytes of several chunks and slice them : chunks closer than maxGap bytes in the data block are merged into a single read
+	private ByteBuffer[] readChunks(int[] cidx, int maxGap) throws Exception {
 		
-		BlockEntry be = new BlockEntry(this.chunksOffset[cidx],this.chunksSize[cidx]);
+		ByteBuffer[] buffers = new ByteBuffer[cidx.length];
+		
+		//requests sorted by offset
+		Integer[] order = new Integer[cidx.length];
+		for(int i = 0 ; i < order.length ; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (i1, i2) -> Long.compare(this.chunksOffset[cidx[i1]], this.chunksOffset[cidx[i2]]));
 		
-		try(InputStream is = readBlock(this.raf, be)) {
+		int first = 0;
+		while(first < order.length) {
 			
-			//TODO : check EOF
-
-			//read chunk shape
-			int[] shape = new int[is.read()];
-			int size = 1;
-			for(int d = 0 ; d < shape.length ; d++) {
-				shape[d] = is.read();
-				size = size * shape[d];
+			long start = this.chunksOffset[cidx[order[first]]];
+			long end = start + this.chunksSize[cidx[order[first]]];
+			
+			int last = first + 1;
+			while(last < order.length && this.chunksOffset[cidx[order[last]]] - end <= maxGap) {
+				end = Math.max(end, this.chunksOffset[cidx[order[last]]] + this.chunksSize[cidx[order[last]]]);
+				last++;
 			}
-
-			//read quantization polynom
-			float[] quantPolynom = new float[is.read()];
-			for(int d = 0 ; d < quantPolynom.length ; d++) {
-				quantPolynom[d] = Float.intBitsToFloat(StreamTools.readInt(is));
+			
+			if(debug) {
+				System.out.println("readChunks : " + (last - first) + " chunks / offset = " + start + " / size = " + (end - start));
 			}
-
-			//create output array for coefficients in zig zag order
-			int[] zz = new int[size];
-
-			//read DC coefficient
-			zz[0] = StreamTools.readInt(is);
-
-//			QuantChunk cq = new QuantChunk(shape, quantPolynom);
-			
-			PolynomKey pk = new PolynomKey(quantPolynom);
-			QuantChunk qc = quantChunkCache.get(pk);
-			if(qc == null) {
-				synchronized (cacheLock) {
-					qc = quantChunkCache.get(pk);
-					if(qc == null) {
-						qc = new QuantChunk(shape, quantPolynom);
-						quantChunkCache.put(pk,qc);
-						
-						System.out.println("create QuantChunk with polynom " + Arrays.toString(quantPolynom));
-					}
+			
+			ByteBuffer range = readBytes(start, (int)(end - start));
+			for(int i = first ; i < last ; i++) {
+				int c = cidx[order[i]];
+				ByteBuffer bb = range.duplicate();
+				bb.position((int)(this.chunksOffset[c] - start));
+				bb.limit(bb.position() + this.chunksSize[c]);
+				buffers[order[i]] = bb.slice();
+			}
+			
+			first = last;
+		}
+		
+		return buffers;
+	}
+	
+	private static void await(List<? extends Future<?>> futures) throws Exception {
+		try {
+			for(Future<?> future : futures) {
+				future.get();
+			}
+		} catch(ExecutionException e) {
+			for(Future<?> future : futures) {
+				future.cancel(false);
+			}
+			if(e.getCause() instanceof Exception) {
+				throw (Exception)e.getCause();
+			}
+			throw e;
+		}
+	}
+	
+	//copy the valid part of a decoded chunk (always full chunk shape) into the shard array
+	private void copy(Chunk chunk, int[] chunkIdx, Array array) {
+		
+		float[] data = (float[])chunk.getArray().get1DJavaArray(DataType.FLOAT);
+		int rank = this.shape.length;
+		boolean integer = array.getDataType().isIntegral();
+		
+		int[] origin = new int[rank];
+		int[] len = new int[rank];
+		int rows = 1;
+		for(int d = 0 ; d < rank ; d++) {
+			origin[d] = chunkIdx[d] * this.chunkShape[d];
+			len[d] = Math.min(this.chunkShape[d], this.shape[d] - origin[d]);
+			if(d < rank - 1) {
+				rows = rows * len[d];
+			}
+		}
+		
+		//loop on rows (last dimension) of the chunk
+		int[] pos = new int[rank];
+		for(int r = 0 ; r < rows ; r++) {
+			
+			int src = 0;
+			int dst = 0;
+			for(int d = 0 ; d < rank - 1 ; d++) {
+				src = src * this.chunkShape[d] + pos[d];
+				dst = dst * this.shape[d] + origin[d] + pos[d];
+			}
+			src = src * this.chunkShape[rank-1];
+			dst = dst * this.shape[rank-1] + origin[rank-1];
+			
+			if(integer) {
+				for(int i = 0 ; i < len[rank-1] ; i++) {
+					array.setInt(dst + i, (int)Math.round(data[src + i]));
+				}
+			}
+			else {
+				for(int i = 0 ; i < len[rank-1] ; i++) {
+					array.setFloat(dst + i, data[src + i]);
+				}
+			}
+			
+			for(int d = rank - 2 ; d >= 0 ; d--) {
+				if(++pos[d] < len[d]) {
+					break;
+				}
+				pos[d] = 0;
+			}
+		}
+		
+	}
+	
+	private static QuantChunk getQuantChunk(int[] shape, float[] quantPolynom) {
+		
+		PolynomKey pk = new PolynomKey(quantPolynom);
+		QuantChunk qc = quantChunkCache.get(pk);
+		if(qc == null) {
+			synchronized (cacheLock) {
+				qc = quantChunkCache.get(pk);
+				if(qc == null) {
+					qc = new QuantChunk(shape, quantPolynom);
+					quantChunkCache.put(pk,qc);
+					
+					System.out.println("create QuantChunk with polynom " + Arrays.toString(quantPolynom));
+				}
+			}
+		}
+		return qc;
+	}
+	
+	private static float[] getDecodeBuffer(int size) {
+		float[] data = decodeBuffer.get();
+		if(data == null || data.length < size) {
+			data = new float[size];
+			decodeBuffer.set(data);
+		}
+		return data;
+	}
+	
+	//zigzag scatter + dequantization + iDCT in a per-thread buffer (chunk shape, row-major)
+	private float[] decodeValues(ByteBuffer bb) throws Exception {
+		return decodeValues(bb, 1, -1);
+	}
+	
+	//scan position after the last coefficient whose frequencies are all lower than chunk shape / reductionFactor
+	private int getReducedScanEnd(int reductionFactor) {
+		
+		int log2 = Integer.numberOfTrailingZeros(reductionFactor);
+		int end = this.reducedScanEnd[log2];
+		
+		if(end == 0) {
+			for(int s = 0 ; s < this.zigzagIndex.length ; s++) {
+				boolean kept = true;
+				for(int d = this.chunkShape.length - 1, pos = this.zigzagIndex[s] ; d >= 0 ; d--) {
+					kept &= pos % this.chunkShape[d] < this.chunkShape[d] / reductionFactor;
+					pos = pos / this.chunkShape[d];
+				}
+				if(kept) {
+					end = s + 1;
 				}
 			}
+			this.reducedScanEnd[log2] = end;
+		}
+		
+		return end;
+	}
+	
+	//lowest chunk shape / reductionFactor coefficients per axis, scaled for an orthonormal iDCT of the reduced size
+	private static float[] reduce(float[] data, int[] shape, int reductionFactor) {
+		
+		int rank = shape.length;
+		int[] reducedShape = new int[rank];
+		int size = 1;
+		for(int d = 0 ; d < rank ; d++) {
+			reducedShape[d] = shape[d] / reductionFactor;
+			size = size * reducedShape[d];
+		}
+		
+		//sqrt(1 / reductionFactor) per axis
+		float scale = (float)Math.pow(reductionFactor, -0.5 * rank);
+		
+		float[] reduced = new float[size];
+		int[] pos = new int[rank];
+		for(int r = 0 ; r < size ; r++) {
+			
+			int src = 0;
+			for(int d = 0 ; d < rank ; d++) {
+				src = src * shape[d] + pos[d];
+			}
+			reduced[r] = data[src] * scale;
+			
+			for(int d = rank - 1 ; d >= 0 && ++pos[d] == reducedShape[d] ; d--) {
+				pos[d] = 0;
+			}
+		}
+		
+		Chunk.idct(reduced, reducedShape);
+		
+		return reduced;
+	}
+	
+	//reductionFactor > 1 : new buffer of shape chunk shape / reductionFactor decoded from the low frequencies only (see getChunk(int[],int))
+	//slice >= 0 : new buffer of the plane slice of dim 0 only (see getSlice)
+	private float[] decodeValues(ByteBuffer bb, int reductionFactor, int slice) throws Exception {
+		
+		//read chunk shape
+		int rank = bb.get() & 0xFF;
+		int size = 1;
+		for(int d = 0 ; d < rank ; d++) {
+			int len = bb.get() & 0xFF;
+			if(rank != this.chunkShape.length || len != this.chunkShape[d]) {
+				throw new IllegalArgumentException("Invalid chunk shape");
+			}
+			size = size * len;
+		}
 
-			try(BitReader br = new BitReader(is)) {
+		//read quantization polynom
+		float[] quantPolynom = new float[bb.get() & 0xFF];
+		for(int d = 0 ; d < quantPolynom.length ; d++) {
+			quantPolynom[d] = Float.intBitsToFloat(bb.getInt());
+		}
+		
+		//constant chunk : no Huffman decoding nor iDCT
+		if(quantPolynom.length == 0) {
+			float value = bb.getFloat();
+			if(reductionFactor > 1) {
+				float[] reduced = new float[size >> (Integer.numberOfTrailingZeros(reductionFactor) * rank)];
+				Arrays.fill(reduced, value);
+				return reduced;
+			}
+			if(slice >= 0) {
+				float[] plane = new float[size / this.chunkShape[0]];
+				Arrays.fill(plane, value);
+				return plane;
+			}
+			float[] data = getDecodeBuffer(size);
+			Arrays.fill(data, 0, size, value);
+			return data;
+		}
+		
+		float[] quant = (float[])getQuantChunk(this.chunkShape, quantPolynom).getArray().get1DJavaArray(DataType.FLOAT);
+		float[] data = getDecodeBuffer(size);
+		Arrays.fill(data, 0, size, 0.0f);
+		
+		//read DC coefficient
+		int pos = this.zigzagIndex[0];
+		data[pos] = (float)(bb.getInt() * (double)quant[pos]);
+		
+		//last scan position with a non-zero coefficient (sparse iDCT)
+		int lastScan = 0;
+
+		try(BitReader br = new ByteBufferBitReader(bb)) {
 
-				//Start at idx = 1 because position 0 is already initialized with DC coef
-				int idx = 1; 
-				while(idx < size - 1) {
+			//Start at idx = 1 because position 0 is already initialized with DC coef
+			int idx = 1; 
+			int end = this.runLength ? size : size - 1;
+			
+			//following coefficients are not used at reduced resolution
+			if(reductionFactor > 1) {
+				end = Math.min(end, getReducedScanEnd(reductionFactor));
+			}
+			
+			while(idx < end) {
 
-					zz[idx] = huffman.readSymbol(br);
+				int value = huffman.readSymbol(br);
 
-					if(zz[idx] == ChunkWriter.rleCode) {
-						int s = (short)br.readBits(16);
-//						int s = (int)br.readBits(16);
-						for(int i = 0 ; i < s ; i++) {
-							zz[idx] = 0;
-							idx++;
-						}
+				if(value == ChunkWriter.rleCode) {
+					//zero sequence, buffer is already cleared
+					idx += (short)br.readBits(16);
+				}
+				else if(value >= ChunkWriter.eobCode) {
+					//zero run, end of block if empty
+					if(value == ChunkWriter.eobCode) {
+						break;
 					}
-					else {
-						idx++;
+					idx += value - ChunkWriter.eobCode;
+				}
+				else {
+					pos = this.zigzagIndex[idx];
+					data[pos] = (float)(value * (double)quant[pos]);
+					if(value != 0) {
+						lastScan = idx;
 					}
-
+					idx++;
 				}
-			}
 
-			Chunk chunk = new Chunk(DataType.FLOAT, shape, zz, this.zigzagOrder);
-			chunk.scale(qc,true,false);
-			chunk.idct();
+			}
+		}
+		
+		if(reductionFactor > 1) {
+			return reduce(data, this.chunkShape, reductionFactor);
+		}
+		
+		if(slice >= 0) {
+			//dim 0 frequencies that may be non-zero
+			int plane = size / this.chunkShape[0];
+			int len = 0;
+			for(int s = 0 ; s <= lastScan ; s++) {
+				len = Math.max(len, this.zigzagIndex[s] / plane + 1);
+			}
+			return Chunk.idctSlice(data, this.chunkShape, slice, len);
+		}
+		
+		Chunk.idct(data, this.chunkShape, this.zigzagIndex, lastScan);
+		
+		return data;
+	}
+	
+	//origin in the shard and length of the valid part (inside the shard) of a chunk
+	private int[][] validRegion(int[] chunkIdx) {
+		int[] origin = new int[this.shape.length];
+		int[] len = new int[this.shape.length];
+		for(int d = 0 ; d < this.shape.length ; d++) {
+			origin[d] = chunkIdx[d] * this.chunkShape[d];
+			len[d] = Math.min(this.chunkShape[d], this.shape[d] - origin[d]);
+		}
+		return new int[][] {origin, len};
+	}
+	
+	//decode the valid part of a chunk into dst (float[] or short[]), dst[dstOffset + sum(c[d] * dstStrides[d])] for c in chunk
+	private void _decodeInto(ByteBuffer bb, int[] chunkIdx, Object dst, int dstOffset, int[] dstStrides, double scaleFactor, double addOffset) throws Exception {
+		
+		if(dstStrides.length != this.chunkShape.length) {
+			throw new IllegalArgumentException("Invalid strides number (" + dstStrides.length + " != " + this.chunkShape.length + ")");
+		}
+		
+		float[] data = decodeValues(bb);
+		
+		boolean applyScaleOffset = Double.isNaN(scaleFactor) == false && Double.isNaN(addOffset) == false;
+		double scale  = applyScaleOffset ? scaleFactor : 1.0;
+		double offset = applyScaleOffset ? addOffset   : 0.0;
+		
+		float[] fDst = dst instanceof float[] ? (float[])dst : null;
+		short[] sDst = dst instanceof short[] ? (short[])dst : null;
+		
+		int rank = this.chunkShape.length;
+		int[] len = validRegion(chunkIdx)[1];
+		int rows = 1;
+		for(int d = 0 ; d < rank - 1 ; d++) {
+			rows = rows * len[d];
+		}
+		
+		//loop on rows (last dimension) of the chunk
+		int[] pos = new int[rank];
+		int stride = dstStrides[rank-1];
+		for(int r = 0 ; r < rows ; r++) {
 			
-			boolean applyScaleOffset = Double.isNaN(scaleFactor) == false && Double.isNaN(addOffset) == false;
+			int src = 0;
+			int dstIdx = dstOffset;
+			for(int d = 0 ; d < rank - 1 ; d++) {
+				src = src * this.chunkShape[d] + pos[d];
+				dstIdx += pos[d] * dstStrides[d];
+			}
+			src = src * this.chunkShape[rank-1];
 			
-			if(round) {
+			if(fDst != null) {
 				if(applyScaleOffset) {
-					chunk = Chunk.scaleRound(chunk, roundDataType, scaleFactor, addOffset);
+					for(int i = 0 ; i < len[rank-1] ; i++) {
+						fDst[dstIdx + i * stride] = (float)(data[src + i] * scale + offset);
+					}
 				}
 				else {
-					chunk = Chunk.scaleRound(chunk, roundDataType, 1.0, 0.0);
+					for(int i = 0 ; i < len[rank-1] ; i++) {
+						fDst[dstIdx + i * stride] = data[src + i];
+					}
 				}
 			}
 			else {
-				if(applyScaleOffset) {
-					chunk.scale(scaleFactor, addOffset);
+				for(int i = 0 ; i < len[rank-1] ; i++) {
+					sDst[dstIdx + i * stride] = (short)Math.round(data[src + i] * scale + offset);
 				}
 			}
 			
-			return chunk;
-			
-//			int idx = 0; //this.chunksSize.length - 1;
-//			byte[] tmp = new byte[this.chunksSize[idx]];
-//			raf.seek(this.chunksOffset[idx]);
-//			raf.readFully(tmp,0,tmp.length);
-//			Chunk chunk = ChunkReader.getChunk(new ByteArrayInputStream(tmp), huffman, this.zigzagOrder);
-//			chunk.print(false);
+			for(int d = rank - 2 ; d >= 0 ; d--) {
+				if(++pos[d] < len[d]) {
+					break;
+				}
+				pos[d] = 0;
+			}
 		}
+		
+	}
+	
+	private ByteBuffer readChunk(int[] chunkIdx) throws Exception {
+		int cidx = chunkIndex(chunkIdx);
+		return readBytes(this.chunksOffset[cidx], this.chunksSize[cidx]);
+	}
+	
+	private Chunk _getChunk(int[] chunkIdx, double scaleFactor, double addOffset, boolean round, DataType roundDataType) throws Exception {
+		return decodeChunk(readChunk(chunkIdx), scaleFactor, addOffset, round, roundDataType);
+	}
+	
+	//chunks are Huffman coded independently against the shared table : safe to call from several threads
+	//same decoding as decodeInto (decodeValues), copied from the per-thread buffer into a new chunk
+	private Chunk decodeChunk(ByteBuffer bb, double scaleFactor, double addOffset, boolean round, DataType roundDataType) throws Exception {
+		
+		//chunk bytes are parsed in place, EOF raises a BufferUnderflowException
+		float[] data = decodeValues(bb);
+		
+		int size = 1;
+		for(int len : this.chunkShape) {
+			size = size * len;
+		}
+		
+		Chunk chunk = new Chunk(Array.factory(DataType.FLOAT, this.chunkShape, Arrays.copyOf(data, size)));
+		return scaleChunk(chunk, scaleFactor, addOffset, round, roundDataType);
+	}
+	
+	//scale / offset and rounding of a decoded chunk
+	private static Chunk scaleChunk(Chunk chunk, double scaleFactor, double addOffset, boolean round, DataType roundDataType) throws Exception {
+		
+		boolean applyScaleOffset = Double.isNaN(scaleFactor) == false && Double.isNaN(addOffset) == false;
+		
+		if(round) {
+			if(applyScaleOffset) {
+				chunk = Chunk.scaleRound(chunk, roundDataType, scaleFactor, addOffset);
+			}
+			else {
+				chunk = Chunk.scaleRound(chunk, roundDataType, 1.0, 0.0);
+			}
+		}
+		else {
+			if(applyScaleOffset) {
+				chunk.scale(scaleFactor, addOffset);
+			}
+		}
+		
+		return chunk;
 	}
 	
 	public ShardReader(File file) throws Exception {
+		this(file, false);
+	}
+	
+	//if mapped is true, the shard file is memory-mapped and chunks are decoded without any copy
+	public ShardReader(File file, boolean mapped) throws Exception {
+		this(FileChannel.open(file.toPath(), StandardOpenOption.READ), mapped);
+	}
+	
+	//shard already in memory, from bb.position() to bb.limit()
+	public ShardReader(ByteBuffer bb) throws Exception {
+		this(null, bb.slice());
+	}
+	
+	private ShardReader(FileChannel channel, boolean mapped) throws Exception {
+		this(channel, mapped ? channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()) : null);
+	}
+	
+	private ShardReader(FileChannel channel, ByteBuffer buffer) throws Exception {
 
-		this.raf = new RandomAccessFile(file,"r");
+		this.channel = channel;
+		this.buffer = buffer;
 //		this.dataType = dataType;
 
-		byte[] bytes = new byte[6];
-		this.raf.readFully(bytes);
-		readMagic(new ByteArrayInputStream(bytes));
+		this.runLength = readMagic(readBlock(new BlockEntry(0,6))) != ShardWriter.idVersion;
 		
 		//read blocks id + size
+		long blockPos = 6;
 		for(int i = 0 ; i < 4 ; i++) {
-			long blockPos = this.raf.getFilePointer();
-			byte blockId  = this.raf.readByte();
-			int blockSize = this.raf.readInt() + 4 + 1;
+			ByteBuffer tag = readBytes(blockPos, 5);
+			byte blockId  = tag.get();
+			int blockSize = tag.getInt() + 4 + 1;
 			
 			if(debug) {
 				System.out.println("Block id = " + String.format("%02x:",blockId) + " / pos = " + blockPos + " / size = " + blockSize);
 			}
 			
 			this.blockEntryMap.put(blockId, new BlockEntry(blockPos,blockSize));
-			this.raf.seek(blockPos + blockSize);
+			blockPos += blockSize;
 		}
 		
 		//header
-		try(InputStream is = readBlock(this.raf, ShardWriter.idBlockHeader)){
+		try(InputStream is = readBlock(ShardWriter.idBlockHeader)){
 			
 			int blockSize = readHeaderTag(is, ShardWriter.idBlockHeader);
 			
@@ -370,18 +762,18 @@ public class ShardReader implements AutoCloseable {
 				this.numChunk[i] = size  % csize  == 0 ? size  / csize  : size  / csize  + 1;
 			}
 			
-			this.zigzagOrder = Cell.order(this.chunkShape,true);
+			this.zigzagIndex = Cell.permutation(this.chunkShape,true);
 		}
 		
 		//Huffman table
-		try(InputStream is = readBlock(this.raf, ShardWriter.idBlockHuffmanTable)) {
+		try(InputStream is = readBlock(ShardWriter.idBlockHuffmanTable)) {
 			this.huffman = readHuffmanTable(is);
 		}
 		
 		//Chunks table
 		{
 			BlockEntry be = this.blockEntryMap.get(ShardWriter.idBlockChunksTable);
-			try(InputStream is = readBlock(this.raf, be)) {
+			try(InputStream is = readBlock(be)) {
 				this.chunksSize = readChunksTable(is);
 			}
 		}
@@ -389,18 +781,16 @@ public class ShardReader implements AutoCloseable {
 		//Chunks data
 		{
 			BlockEntry be = this.blockEntryMap.get(ShardWriter.idBlockChunks);
-			try(InputStream is = readBlock(this.raf, be)) {
-				
-				this.chunksStartPosition = be.getOffset() + 4 + 1;
-				this.chunksOffset = new long[chunksSize.length];				
-				
-				long offset = this.chunksStartPosition;
-				for(int i = 0 ; i < this.chunksSize.length ; i++) {
-					this.chunksOffset[i] = offset;
-					offset += this.chunksSize[i];
-				}
-				
+			
+			this.chunksStartPosition = be.getOffset() + 4 + 1;
+			this.chunksOffset = new long[chunksSize.length];				
+			
+			long offset = this.chunksStartPosition;
+			for(int i = 0 ; i < this.chunksSize.length ; i++) {
+				this.chunksOffset[i] = offset;
+				offset += this.chunksSize[i];
 			}
+			
 		}
 		
 			
@@ -483,6 +873,11 @@ public class ShardReader implements AutoCloseable {
 		return this.shape;
 	}
 	
+	//Huffman table of the shard, may be used as a trained table to stream similar shards (see ShardWriter.write(SeekableByteChannel...))
+	public Huffman getHuffman() {
+		return this.huffman;
+	}
+	
 	public int[] getChunkShape() {
 		return this.chunkShape;
 	}
@@ -507,8 +902,189 @@ public class ShardReader implements AutoCloseable {
 		return _getChunk(chunkIdx, scaleFactor, addOffset, round, roundDataType);
 	}
 	
+	//low resolution preview : chunk of shape chunk shape / reductionFactor (power of two), iDCT of the lowest frequencies only
+	//each value approximates the mean of a reductionFactor^rank block, without the aliasing of a plain subsampling
+	public Chunk getChunk(int[] chunkIdx, int reductionFactor) throws Exception {
+		
+		if(reductionFactor < 1 || Integer.bitCount(reductionFactor) != 1) {
+			throw new IllegalArgumentException("Invalid reduction factor (" + reductionFactor + ")");
+		}
+		
+		int[] shape = new int[this.chunkShape.length];
+		for(int d = 0 ; d < shape.length ; d++) {
+			if(this.chunkShape[d] % reductionFactor != 0) {
+				throw new IllegalArgumentException("Invalid reduction factor (" + reductionFactor + " for chunk shape " + Arrays.toString(this.chunkShape) + ")");
+			}
+			shape[d] = this.chunkShape[d] / reductionFactor;
+		}
+		
+		if(reductionFactor == 1) {
+			return getChunk(chunkIdx);
+		}
+		
+		return new Chunk(Array.factory(DataType.FLOAT, shape, decodeValues(readChunk(chunkIdx), reductionFactor, -1)));
+	}
+	
+	//plane index of dim 0 (e.g. a single time step) of a chunk : chunk of the shape of the other dimensions
+	//dim 0 is collapsed on the coefficients before a 2D iDCT, the other planes are not reconstructed
+	public Chunk getSlice(int[] chunkIdx, int index) throws Exception {
+		
+		if(this.chunkShape.length != 3) {
+			throw new UnsupportedOperationException();
+		}
+		
+		if(index < 0 || this.chunkShape[0] <= index) {
+			throw new IllegalArgumentException("Invalid slice index (" + index + " not in [0," + (this.chunkShape[0]-1) + "])");
+		}
+		
+		int[] shape = Arrays.copyOfRange(this.chunkShape, 1, this.chunkShape.length);
+		return new Chunk(Array.factory(DataType.FLOAT, shape, decodeValues(readChunk(chunkIdx), 1, index)));
+	}
+	
+	//decode the valid part of a chunk (clipped to the shard shape) into dst, without intermediate Chunk / Array
+	//value of chunk cell c goes to dst[dstOffset + sum(c[d] * dstStrides[d])]
+	public void decodeInto(int[] chunkIdx, float[] dst, int dstOffset, int[] dstStrides) throws Exception {
+		_decodeInto(readChunk(chunkIdx), chunkIdx, dst, dstOffset, dstStrides, Double.NaN, Double.NaN);
+	}
+	
+	public void decodeInto(int[] chunkIdx, float[] dst, int dstOffset, int[] dstStrides, double scaleFactor, double addOffset) throws Exception {
+		_decodeInto(readChunk(chunkIdx), chunkIdx, dst, dstOffset, dstStrides, scaleFactor, addOffset);
+	}
+	
+	//values are rounded (same as getChunk with round = true and a SHORT data type)
+	public void decodeInto(int[] chunkIdx, short[] dst, int dstOffset, int[] dstStrides) throws Exception {
+		_decodeInto(readChunk(chunkIdx), chunkIdx, dst, dstOffset, dstStrides, Double.NaN, Double.NaN);
+	}
+	
+	public void decodeInto(int[] chunkIdx, short[] dst, int dstOffset, int[] dstStrides, double scaleFactor, double addOffset) throws Exception {
+		_decodeInto(readChunk(chunkIdx), chunkIdx, dst, dstOffset, dstStrides, scaleFactor, addOffset);
+	}
+	
+	//batch reads : max number of unused bytes read between two requested chunks (e.g. small for a local file, large for an object storage)
+	public void setMaxReadGap(int maxGap) {
+		if(maxGap < 0) {
+			throw new IllegalArgumentException("Invalid read gap (" + maxGap + ")");
+		}
+		this.readGap = maxGap;
+	}
+	
+	public int getMaxReadGap() {
+		return this.readGap;
+	}
+	
+	//decode several chunks, bytes of neighbouring chunks being read together (see setMaxReadGap)
+	public Chunk[] getChunks(int[][] chunkIdx) throws Exception {
+		return getChunks(chunkIdx, Double.NaN, Double.NaN, false, null);
+	}
+	
+	public Chunk[] getChunks(int[][] chunkIdx, double scaleFactor, double addOffset, boolean round, DataType roundDataType) throws Exception {
+		
+		int[] cidx = new int[chunkIdx.length];
+		for(int i = 0 ; i < chunkIdx.length ; i++) {
+			cidx[i] = chunkIndex(chunkIdx[i]);
+		}
+		
+		ByteBuffer[] buffers = readChunks(cidx, this.readGap);
+		
+		Chunk[] chunks = new Chunk[buffers.length];
+		for(int i = 0 ; i < chunks.length ; i++) {
+			chunks[i] = decodeChunk(buffers[i], scaleFactor, addOffset, round, roundDataType);
+		}
+		return chunks;
+	}
+	
+	//decode several chunks concurrently, bytes of neighbouring chunks being read together (see setMaxReadGap)
+	public Chunk[] getChunks(int[][] chunkIdx, ExecutorService executor) throws Exception {
+		return getChunks(chunkIdx, executor, Double.NaN, Double.NaN, false, null);
+	}
+	
+	public Chunk[] getChunks(int[][] chunkIdx, ExecutorService executor, double scaleFactor, double addOffset, boolean round, DataType roundDataType) throws Exception {
+		
+		int[] cidx = new int[chunkIdx.length];
+		for(int i = 0 ; i < chunkIdx.length ; i++) {
+			cidx[i] = chunkIndex(chunkIdx[i]);
+		}
+		
+		ByteBuffer[] buffers = readChunks(cidx, this.readGap);
+		
+		ArrayList<Future<Chunk>> futures = new ArrayList<>(buffers.length);
+		for(ByteBuffer bb : buffers) {
+			futures.add(executor.submit(() -> decodeChunk(bb, scaleFactor, addOffset, round, roundDataType)));
+		}
+		
+		await(futures);
+		
+		Chunk[] chunks = new Chunk[futures.size()];
+		for(int i = 0 ; i < chunks.length ; i++) {
+			chunks[i] = futures.get(i).get();
+		}
+		return chunks;
+	}
+	
+	//decode the whole shard concurrently into a float array of the shard shape
+	public Array decodeAll(ExecutorService executor) throws Exception {
+		return decodeAll(Array.factory(DataType.FLOAT, this.shape), executor);
+	}
+	
+	//decode the whole shard concurrently into array (shard shape, values are rounded for integral data types)
+	public Array decodeAll(Array array, ExecutorService executor) throws Exception {
+		
+		if(Arrays.equals(this.shape, array.getShape()) == false) {
+			throw new IllegalArgumentException("Invalid array shape (" + Arrays.toString(array.getShape()) + " != " + Arrays.toString(this.shape) + ")");
+		}
+		
+		int[] cidx = new int[this.chunksSize.length];
+		for(int c = 0 ; c < cidx.length ; c++) {
+			cidx[c] = c;
+		}
+		
+		//FLOAT and SHORT arrays stored in row-major order are decoded in place
+		Object storage = array.get1DJavaArray(array.getDataType()) == array.getStorage() ? array.getStorage() : null;
+		int[] strides = new int[this.shape.length];
+		for(int d = strides.length - 1, stride = 1 ; d >= 0 ; d--) {
+			strides[d] = stride;
+			stride = stride * this.shape[d];
+		}
+		
+		//the data block is read at once
+		ByteBuffer[] buffers = readChunks(cidx, Integer.MAX_VALUE);
+		
+		//each task writes its own region of array
+		ArrayList<Future<?>> futures = new ArrayList<>(buffers.length);
+		for(int c = 0 ; c < buffers.length ; c++) {
+			
+			int[] chunkIdx = new int[this.numChunk.length];
+			for(int d = this.numChunk.length - 1, r = c ; d >= 0 ; d--) {
+				chunkIdx[d] = r % this.numChunk[d];
+				r = r / this.numChunk[d];
+			}
+			
+			ByteBuffer bb = buffers[c];
+			futures.add(executor.submit(() -> {
+				if(storage instanceof float[] || storage instanceof short[]) {
+					int offset = 0;
+					int[] origin = validRegion(chunkIdx)[0];
+					for(int d = 0 ; d < origin.length ; d++) {
+						offset += origin[d] * strides[d];
+					}
+					_decodeInto(bb, chunkIdx, storage, offset, strides, Double.NaN, Double.NaN);
+				}
+				else {
+					copy(decodeChunk(bb, Double.NaN, Double.NaN, false, null), chunkIdx, array);
+				}
+				return null;
+			}));
+		}
+		
+		await(futures);
+		
+		return array;
+	}
+	
 	@Override public void close() throws Exception {
-		this.raf.close();
+		if(this.channel != null) {
+			this.channel.close();
+		}
 	}
 	
 }
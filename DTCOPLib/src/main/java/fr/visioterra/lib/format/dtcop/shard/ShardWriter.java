@@ -1,10 +1,22 @@
 package fr.visioterra.lib.format.dtcop.shard;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -16,6 +28,8 @@ import fr.visioterra.lib.format.dtcop.huffman.Histogram;
 import fr.visioterra.lib.format.dtcop.huffman.Huffman;
 import fr.visioterra.lib.format.dtcop.quantization.QuantChunk;
 import fr.visioterra.lib.io.bit.BitWriter;
+import fr.visioterra.lib.io.stream.BufferedInputStream;
+import fr.visioterra.lib.io.stream.BufferedOutputStream;
 import fr.visioterra.lib.io.stream.ByteArrayOutputStream;
 import fr.visioterra.lib.io.stream.StreamTools;
 import ucar.ma2.DataType;
@@ -24,90 +38,175 @@ public class ShardWriter {
 
 	public static boolean debug = false;
 	public static final byte[] magicNumber        = new byte[] { 68, 84, 67, 79, 80}; 
-	public static final byte idVersion            = 0x00;
+	public static final byte idVersion            = 0x00;	//AC zero runs as repeated zero symbols or rleCode escape
+	public static final byte idVersionRunLength   = 0x01;	//AC zero runs as run-length symbols, zero tail as end of block
+	public static final byte idVersionConstant    = 0x02;	//0x01 + chunks within maxError of a single value stored as this value (empty polynom)
 	public static final byte idBlockHeader        = 0x21;
 	public static final byte idBlockHuffmanTable  = 0x22;
 	public static final byte idBlockChunksTable   = 0x24;
 	public static final byte idBlockChunks        = 0x28;
 	public static final int huffmanTableSymbolLen = 16;
+	public static final int huffmanTableSymbolLenRunLength = 17;
 	
+	//default version of the written shards (see Options)
+	public static byte version = idVersionConstant;
 	
+	//streaming writer : max number of rows of chunks per thread encoded and not yet written
+	public static int pendingRows = 1;
 	
-	private static Huffman computeHuffmanTable(Shard shard, List<QuantChunk> qChunks, double maxError, int threadNumber, TreeMap<Integer,ChunkWriter> chunkWriterMap) throws Exception {
+	//format of the written shards, fixed for the whole write (the default one is taken from the static settings when created)
+	public static class Options {
 		
-		//16bits tuned
-		Histogram histogram = new Histogram(256*256,Short.MAX_VALUE);
+		private final byte version;
+		private final int maxCodeLength;
 		
-		//zigzag order as Cell[] 
-		Cell[] cells = Cell.order(shard.getChunkShape(),true);
+		public Options() {
+			this(ShardWriter.version, Huffman.maxCodeLength);
+		}
 		
-		//Thread pool executor
-		ThreadPoolExecutor tpe = new ThreadPoolExecutor(threadNumber, threadNumber, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
-
-		//loop on chunks
-		int[] numChunk = shard.getNumChunk();
-		int[] idxChunk = new int[] {0,0,0};
-		int idx = 0;
+		public Options(byte version, int maxCodeLength) {
+			
+			if(checkVersion(version) == false) {
+				throw new IllegalArgumentException("Invalid version (" + version + ")");
+			}
+			
+			if(maxCodeLength < 1 || 31 < maxCodeLength) {
+				throw new IllegalArgumentException("Invalid max code length (" + maxCodeLength + ")");
+			}
+			
+			this.version = version;
+			this.maxCodeLength = maxCodeLength;
+		}
+		
+		public byte getVersion() {
+			return this.version;
+		}
+		
+		public int getMaxCodeLength() {
+			return this.maxCodeLength;
+		}
+		
+		boolean isRunLength() {
+			return this.version != idVersion;
+		}
+		
+		boolean isConstant() {
+			return this.version == idVersionConstant;
+		}
+		
+		int getSymbolLen() {
+			return isRunLength() ? huffmanTableSymbolLenRunLength : huffmanTableSymbolLen;
+		}
+	}
+	
+	private interface ChunkQuantizer {
+		ChunkWriter quantize(int[] chunkIdx, int seed) throws Exception;
+	}
+	
+	private interface ChunkEncoder {
+		byte[] encode(ChunkWriter cw) throws Exception;
+	}
+	
+	private interface ChunkSink {
+		void write(byte[] data) throws Exception;
+	}
+	
+	//a chunk has a symbol missing from the trained Huffman table
+	private static class TableCoverageException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+	
+	//histogram of the AC symbols : 16bits values + run-length symbols
+	//used by one task at a time (handed over through a concurrent queue / thread local, merged once the tasks are completed) : no lock on update
+	private static Histogram createHistogram() {
+		return new Histogram(256*256 + ChunkWriter.maxRunLen + 1,Short.MAX_VALUE,false);
+	}
+	
+	//merge histograms and create Huffman table (a single symbol one if every chunk is constant)
+	private static Huffman createHuffmanTable(List<Histogram> histograms, int maxCodeLength) throws Exception {
+		Histogram histogram = createHistogram();
+		for(Histogram h : histograms) {
+			histogram.merge(h);
+		}
+		if(histogram.getTotalCount() == 0) {
+			histogram.update(0);
+		}
+		return histogram.getHuffman(maxCodeLength);
+	}
+	
+	private static boolean checkVersion(byte version) {
+		return version == idVersion || version == idVersionRunLength || version == idVersionConstant;
+	}
+	
+	
+	
+	private static Huffman computeHuffmanTable(Shard shard, List<QuantChunk> qChunks, double maxError, ExecutorService executor, TreeMap<Integer,ChunkWriter> chunkWriterMap, Options options) throws Exception {
+		
+		boolean runLength = options.isRunLength();
+		boolean constant = options.isConstant();
+		
+		//16bits tuned, each histogram is used by one task at a time (no contention on update), merged at the end
+		final ArrayList<Histogram> histograms = new ArrayList<>();
+		final ConcurrentLinkedQueue<Histogram> idleHistograms = new ConcurrentLinkedQueue<>();
 		
-		final Object lock = new Object();
+		//zigzag order as row-major positions
+		int[] cells = Cell.permutation(shard.getChunkShape(),true);
+		
+		//one task per row of chunks (last dimension) : the quantization search of a chunk is seeded by the previous chunk of the row,
+		//so that the output does not depend on the thread number or on the scheduling
+		int[] numChunk = shard.getNumChunk();
+		ArrayList<Future<?>> futures = new ArrayList<>();
 		
-		//loop on k dim
 		for(int k = 0 ; k < numChunk[0] ; k++) {
-			idxChunk[0] = k;
-			
-			//loop on j dim
 			for(int j = 0 ; j < numChunk[1] ; j++) {
-				idxChunk[1] = j;
 				
-				//loop on i dim
-				for(int i = 0 ; i < numChunk[2] ; i++) {
-					idxChunk[2] = i;
-
-					final int index = idx;
-					
-					//TODO : remove debug
-//					System.out.println(Arrays.toString(idxChunk) + " => " + idx);
-					
-					idx++;
+				final int[] idxChunk = new int[] {k,j,0};
+				final int first = (k * numChunk[1] + j) * numChunk[2];
+				
+				futures.add(executor.submit(() -> {
 					
-					//get chunk as FLOAT Array
-					Chunk origin = shard.getChunk(idxChunk, DataType.FLOAT);
+					Histogram histogram = idleHistograms.poll();
+					if(histogram == null) {
+						histogram = createHistogram();
+						synchronized (histograms) {
+							histograms.add(histogram);
+						}
+					}
 					
-					//create a runnable and submit
-					Runnable runnable = new Runnable() {
-						@Override public void run() {
+					try {
+						int seed = -1;
+						for(int i = 0 ; i < numChunk[2] ; i++) {
+							idxChunk[2] = i;
+							
+							//get chunk as FLOAT Array
+							Chunk origin = shard.getChunk(idxChunk, DataType.FLOAT);
+							ChunkWriter cw = new ChunkWriter(origin, qChunks, maxError, cells, histogram, seed, runLength, constant);
+							seed = cw.getQuantIdx();
 							
-							try {
-								
-								//compte compression outside the synchronization block
-								ChunkWriter cw = new ChunkWriter(origin, qChunks, maxError, cells, histogram);
-								
-								synchronized(lock) {
-									chunkWriterMap.put(index,cw);
-								}
-								
-							} catch(Exception e) {
-								System.err.println(e.getMessage());
+							synchronized(chunkWriterMap) {
+								chunkWriterMap.put(first + i,cw);
 							}
 						}
-					};
-					tpe.submit(runnable);
+					} finally {
+						idleHistograms.add(histogram);
+					}
 					
-				}
+					return null;
+				}));
 			}
 		}
-
+		
 		//wait completion
-		tpe.shutdown();
-		while (tpe.awaitTermination(50, TimeUnit.MILLISECONDS) == false) {}
+		for(Future<?> future : futures) {
+			get(future);
+		}
 		
-		//create Huffman table
-		return histogram.getHuffman();
+		return createHuffmanTable(histograms, options.getMaxCodeLength());
 	}
 	
-	private static void writeMagic(OutputStream os) throws Exception {
+	private static void writeMagic(OutputStream os, byte version) throws Exception {
 		os.write(magicNumber);
-		os.write(idVersion);
+		os.write(version);
 	}
 	
 	private static void writeHeaderTag(OutputStream os, byte idBlock, int blockSize) throws Exception {
@@ -153,7 +252,7 @@ public class ShardWriter {
 		
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		try(BitWriter bw = new BitWriter(baos,64)) {
-			huffman.writeTable(bw,16);
+			huffman.writeTable(bw,symbolLen);
 		}
 		byte[] huffmanTableData = baos.toByteArray();
 
@@ -170,19 +269,27 @@ public class ShardWriter {
 	}
 	
 	private static void writeChunksTable(OutputStream os, ArrayList<byte[]> chunkDataList) throws Exception {
+		int[] chunksSize = new int[chunkDataList.size()];
+		for(int i = 0 ; i < chunksSize.length ; i++) {
+			chunksSize[i] = chunkDataList.get(i).length;
+		}
+		writeChunksTable(os, chunksSize);
+	}
+	
+	private static void writeChunksTable(OutputStream os, int[] chunksSize) throws Exception {
 		
 		if(debug) {
-			System.out.println("writeChunksTable / count = " + chunkDataList.size());
+			System.out.println("writeChunksTable / count = " + chunksSize.length);
 		}
 		
-		int blockSize = 2 + 4 * chunkDataList.size();
+		int blockSize = 2 + 4 * chunksSize.length;
 		writeHeaderTag(os, idBlockChunksTable, blockSize);
 		
-		StreamTools.writeShort(os,chunkDataList.size());
-		for(byte[] data : chunkDataList) {
-			StreamTools.writeInt(os,data.length);
+		StreamTools.writeShort(os,chunksSize.length);
+		for(int size : chunksSize) {
+			StreamTools.writeInt(os,size);
 			if(debug) {
-				System.out.println("Chunk size = " + data.length);
+				System.out.println("Chunk size = " + size);
 			}
 		}
 		
@@ -204,6 +311,28 @@ public class ShardWriter {
 	}
 	
 	public static void write(OutputStream os, Shard shard, List<QuantChunk> qChunks, double maxError, int threadNumber) throws Exception {
+		write(os, shard, qChunks, maxError, threadNumber, new Options());
+	}
+	
+	public static void write(OutputStream os, Shard shard, List<QuantChunk> qChunks, double maxError, int threadNumber, Options options) throws Exception {
+		ThreadPoolExecutor tpe = new ThreadPoolExecutor(threadNumber, threadNumber, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		try {
+			write(os, shard, qChunks, maxError, tpe, options);
+		} finally {
+			tpe.shutdown();
+		}
+	}
+	
+	/**
+	 * Chunks are quantized then Huffman coded by tasks submitted to executor (e.g. a ForkJoinPool shared by several shards),
+	 * the calling thread only waits for them (it must not be one of the executor threads if the executor is bounded).
+	 * The output does not depend on the executor nor on its thread number.
+	 */
+	public static void write(OutputStream os, Shard shard, List<QuantChunk> qChunks, double maxError, ExecutorService executor) throws Exception {
+		write(os, shard, qChunks, maxError, executor, new Options());
+	}
+	
+	public static void write(OutputStream os, Shard shard, List<QuantChunk> qChunks, double maxError, ExecutorService executor, Options options) throws Exception {
 		
 		if(shard.getShape().length != 3) {
 			throw new UnsupportedOperationException();
@@ -213,7 +342,7 @@ public class ShardWriter {
 		TreeMap<Integer,ChunkWriter> chunkWriterMap = new TreeMap<>();
 		
 		//create Huffman table
-		Huffman huffman = computeHuffmanTable(shard, qChunks, maxError, threadNumber, chunkWriterMap);
+		Huffman huffman = computeHuffmanTable(shard, qChunks, maxError, executor, chunkWriterMap, options);
 
 		int count = 1;
 		int[] numChunk = shard.getNumChunk();
@@ -229,18 +358,262 @@ public class ShardWriter {
 			System.out.println("ShardWriter.write(...) : " + chunkWriterMap.size() + " chunks");
 		}
 		
-		ArrayList<byte[]> chunkDataList = new ArrayList<>();
+		//Huffman coding of the chunks in parallel, in index order
+		ArrayList<Future<byte[]>> futures = new ArrayList<>();
 		for(ChunkWriter cw : chunkWriterMap.values()) {
-			byte[] data = cw.getBytes(huffman);
-			chunkDataList.add(data);
+			futures.add(executor.submit(() -> cw.getBytes(huffman)));
 		}
 		
-		writeMagic(os);
+		ArrayList<byte[]> chunkDataList = new ArrayList<>();
+		for(Future<byte[]> future : futures) {
+			chunkDataList.add(get(future));
+		}
+		
+		writeMagic(os, options.getVersion());
 		writeHeader(os, shard.getShape(), shard.getChunkShape());
-		writeHuffmanTable(os, huffman, huffmanTableSymbolLen);
+		writeHuffmanTable(os, huffman, options.getSymbolLen());
 		writeChunksTable(os, chunkDataList);
 		writeChunks(os, chunkDataList);
 		
 	}
 	
+	private static <T> T get(Future<T> future) throws Exception {
+		try {
+			return future.get();
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof Exception) {
+				throw (Exception)e.getCause();
+			}
+			throw e;
+		}
+	}
+	
+	//number of threads of executor (available processors if unknown)
+	private static int parallelism(ExecutorService executor) {
+		if(executor instanceof ThreadPoolExecutor) {
+			return ((ThreadPoolExecutor)executor).getMaximumPoolSize();
+		}
+		if(executor instanceof ForkJoinPool) {
+			return ((ForkJoinPool)executor).getParallelism();
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+	
+	//encode chunks with one task per row of chunks (last dimension), bytes are passed to sink in chunk index order
+	//as in computeHuffmanTable, the quantization search of a chunk is seeded by the previous chunk of the row
+	//at most maxPending rows are encoded (or being encoded) and not yet passed to sink
+	private static void encodeChunks(Shard shard, ExecutorService executor, int maxPending, ChunkQuantizer quantizer, ChunkEncoder encoder, ChunkSink sink) throws Exception {
+		
+		ArrayDeque<Future<ArrayList<byte[]>>> pending = new ArrayDeque<>();
+		
+		try {
+			
+			int[] numChunk = shard.getNumChunk();
+			for(int k = 0 ; k < numChunk[0] ; k++) {
+				for(int j = 0 ; j < numChunk[1] ; j++) {
+					
+					final int[] idxChunk = new int[] {k,j,0};
+					pending.add(executor.submit(() -> {
+						ArrayList<byte[]> row = new ArrayList<>(numChunk[2]);
+						int seed = -1;
+						for(int i = 0 ; i < numChunk[2] ; i++) {
+							idxChunk[2] = i;
+							ChunkWriter cw = quantizer.quantize(idxChunk, seed);
+							seed = cw.getQuantIdx();
+							row.add(encoder.encode(cw));
+						}
+						return row;
+					}));
+					
+					if(pending.size() >= maxPending) {
+						for(byte[] data : get(pending.poll())) {
+							sink.write(data);
+						}
+					}
+				}
+			}
+			
+			while(pending.isEmpty() == false) {
+				for(byte[] data : get(pending.poll())) {
+					sink.write(data);
+				}
+			}
+			
+		} finally {
+			for(Future<?> future : pending) {
+				future.cancel(true);
+			}
+		}
+	}
+	
+	public static void write(SeekableByteChannel channel, Shard shard, List<QuantChunk> qChunks, double maxError, int threadNumber, Huffman huffman) throws Exception {
+		write(channel, shard, qChunks, maxError, threadNumber, huffman, new Options());
+	}
+	
+	public static void write(SeekableByteChannel channel, Shard shard, List<QuantChunk> qChunks, double maxError, int threadNumber, Huffman huffman, Options options) throws Exception {
+		ThreadPoolExecutor tpe = new ThreadPoolExecutor(threadNumber, threadNumber, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+		try {
+			write(channel, shard, qChunks, maxError, tpe, huffman, options);
+		} finally {
+			tpe.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Streaming writer : chunks are written to the channel as soon as they are encoded, the chunks table is back-patched at the end.
+	 * With a trained Huffman table (that must contain every symbol of the shard, e.g. the table of a similar shard), the shard is encoded in one pass.
+	 * Without table (huffman == null), a first pass spills the quantized chunks to a temporary file while computing the histogram,
+	 * and a second pass encodes them with the computed table.
+	 * Rows of chunks are encoded by tasks submitted to executor, the output is the same as the in-memory writer whatever the executor.
+	 * Memory usage is bounded by pendingRows * (executor thread number) rows of chunks, whatever the shard size.
+	 * If the trained table misses a symbol of the shard, the shard is written again from the initial channel position with the two-pass mode.
+	 * The shard is written from the initial channel position : if an exception is thrown, the channel content from there is not a valid shard.
+	 */
+	public static void write(SeekableByteChannel channel, Shard shard, List<QuantChunk> qChunks, double maxError, ExecutorService executor, Huffman huffman) throws Exception {
+		write(channel, shard, qChunks, maxError, executor, huffman, new Options());
+	}
+	
+	public static void write(SeekableByteChannel channel, Shard shard, List<QuantChunk> qChunks, double maxError, ExecutorService executor, Huffman huffman, Options options) throws Exception {
+		
+		long start = channel.position();
+		long size = channel.size();
+		
+		try {
+			writeShard(channel, shard, qChunks, maxError, executor, huffman, options);
+		} catch(TableCoverageException e) {
+			//overwrite the partial shard, and drop what it wrote past the new end
+			channel.position(start);
+			writeShard(channel, shard, qChunks, maxError, executor, null, options);
+			long end = Math.max(size, channel.position());
+			if(channel.size() > end) {
+				channel.truncate(end);
+			}
+		}
+	}
+	
+	private static void writeShard(SeekableByteChannel channel, Shard shard, List<QuantChunk> qChunks, double maxError, ExecutorService executor, Huffman huffman, Options options) throws Exception {
+		
+		if(shard.getShape().length != 3) {
+			throw new UnsupportedOperationException();
+		}
+		
+		boolean runLength = options.isRunLength();
+		boolean constant = options.isConstant();
+		int[] cells = Cell.permutation(shard.getChunkShape(),true);
+		
+		int count = 1;
+		for(int n : shard.getNumChunk()) {
+			count = count * n;
+		}
+		
+		//one histogram per worker thread, merged at the end (or unused with a trained table)
+		final ArrayList<Histogram> histograms = new ArrayList<>();
+		final ThreadLocal<Histogram> threadHistogram = ThreadLocal.withInitial(() -> {
+			Histogram histogram = createHistogram();
+			synchronized (histograms) {
+				histograms.add(histogram);
+			}
+			return histogram;
+		});
+		
+		ChunkQuantizer quantizer = (chunkIdx, seed) -> new ChunkWriter(shard.getChunk(chunkIdx, DataType.FLOAT), qChunks, maxError, cells, threadHistogram.get(), seed, runLength, constant);
+		
+		//Huffman coded chunk with a trained table (null if not covered by the table), quantized chunk to spill otherwise
+		ChunkEncoder encoder = (cw) -> {
+			if(huffman != null) {
+				return cw.isCoveredBy(huffman) ? cw.getBytes(huffman) : null;
+			}
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			cw.writeState(baos);
+			return baos.toByteArray();
+		};
+		
+		int maxPending = Math.max(1, pendingRows * parallelism(executor));
+		
+		File spill = null;
+		Huffman table = huffman;
+		
+		try {
+			
+			//first pass : quantized chunks to the spill file and histogram
+			if(table == null) {
+				
+				spill = File.createTempFile("dtcop", ".spill");
+				try(OutputStream os = new BufferedOutputStream(new FileOutputStream(spill), 64 * 1024)) {
+					encodeChunks(shard, executor, maxPending, quantizer, encoder, (data) -> os.write(data));
+				}
+				
+				table = createHuffmanTable(histograms, options.getMaxCodeLength());
+			}
+			
+			//magic + header + Huffman table
+			ByteArrayOutputStream head = new ByteArrayOutputStream();
+			writeMagic(head, options.getVersion());
+			writeHeader(head, shard.getShape(), shard.getChunkShape());
+			writeHuffmanTable(head, table, options.getSymbolLen());
+			writeFully(channel, head.toByteArray());
+			
+			//chunks table and chunks block tag, back-patched at the end
+			long tablePosition = channel.position();
+			int[] chunksSize = new int[count];
+			writeFully(channel, new byte[5 + 2 + 4 * count]);
+			long chunksPosition = channel.position();
+			writeFully(channel, new byte[5]);
+			
+			int[] written = new int[] {0};
+			long[] blockSize = new long[] {0};
+			ChunkSink sink = (data) -> {
+				if(data == null) {
+					throw new TableCoverageException();
+				}
+				writeFully(channel, data);
+				chunksSize[written[0]++] = data.length;
+				blockSize[0] += data.length;
+			};
+			
+			if(spill == null) {
+				encodeChunks(shard, executor, maxPending, quantizer, encoder, sink);
+			}
+			else {
+				//second pass : Huffman coding of the spilled chunks
+				try(InputStream is = new BufferedInputStream(new FileInputStream(spill), 64 * 1024)) {
+					for(int i = 0 ; i < count ; i++) {
+						sink.write(ChunkWriter.readState(is).getBytes(table));
+					}
+				}
+			}
+			
+			if(written[0] != count || blockSize[0] > Integer.MAX_VALUE) {
+				throw new Exception("Invalid processed chunk number (expected=" + count + " / written=" + written[0] + ") or block size (" + blockSize[0] + ")");
+			}
+			
+			long end = channel.position();
+			
+			ByteArrayOutputStream tail = new ByteArrayOutputStream();
+			writeChunksTable(tail, chunksSize);
+			channel.position(tablePosition);
+			writeFully(channel, tail.toByteArray());
+			
+			tail.reset();
+			writeHeaderTag(tail, idBlockChunks, (int)blockSize[0]);
+			channel.position(chunksPosition);
+			writeFully(channel, tail.toByteArray());
+			
+			channel.position(end);
+			
+		} finally {
+			if(spill != null) {
+				spill.delete();
+			}
+		}
+		
+	}
+	
+	private static void writeFully(SeekableByteChannel channel, byte[] data) throws Exception {
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		while(bb.hasRemaining()) {
+			channel.write(bb);
+		}
+	}
+	
 }
@@ -1,34 +1,62 @@
 package fr.visioterra.lib.format.dtcop.zarr;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import com.bc.zarr.Compressor;
+import com.bc.zarr.storage.FileSystemStore;
+import com.bc.zarr.storage.Store;
 
 import fr.visioterra.lib.format.dtcop.quantization.QuantChunk;
 import fr.visioterra.lib.format.dtcop.shard.Shard;
+import fr.visioterra.lib.format.dtcop.shard.ShardReader;
 import fr.visioterra.lib.format.dtcop.shard.ShardWriter;
 import fr.visioterra.lib.io.stream.BufferedOutputStream;
+import fr.visioterra.lib.io.stream.ByteArrayOutputStream;
 import ucar.ma2.Array;
+import ucar.ma2.DataType;
 
 public class DTCOPCompressor extends Compressor {
 	
 	private final int[] chunkShape;
 	private final double maxError;
 	private final int threadNumber;
+	private final ExecutorService executor;		//shared by the shards, null to use the pool of this compressor
+	private ThreadPoolExecutor pool = null;		//threadNumber threads shared by the shards of this compressor, created on first use
 	private final ArrayList<QuantChunk> qChunks;
+	private final ShardWriter.Options options;	//format of the written shards : default settings when the compressor is created
+	private final Shard.Padding padding;
 	
 	
 	public DTCOPCompressor(Map<String, Object> map, double maxError, int threadNumber) {
+		this(map, maxError, threadNumber, null);
+	}
+	
+	//executor : shared by the shards encoded / decoded (possibly concurrently) with this compressor, not shut down by it
+	public DTCOPCompressor(Map<String, Object> map, double maxError, ExecutorService executor) {
+		this(map, maxError, 0, Objects.requireNonNull(executor, "executor"));
+	}
+	
+	private DTCOPCompressor(Map<String, Object> map, double maxError, int threadNumber, ExecutorService executor) {
 		
 		this.chunkShape = new int[] {32,32,32};
 		this.maxError = maxError;
 		this.threadNumber = threadNumber;
+		this.executor = executor;
 		this.qChunks = new ArrayList<>();
+		this.options = new ShardWriter.Options();
+		this.padding = Shard.padding;
 		
 		double sqrt2 = Math.sqrt(2);
 		float chunkScale = (float)Math.pow(sqrt2,15);
@@ -58,6 +86,44 @@ public class DTCOPCompressor extends Compressor {
 		
 	}
 	
+	//executor given to the constructor, or pool of this compressor (idle threads are stopped, no shutdown needed)
+	private synchronized ExecutorService getExecutor() {
+		
+		if(this.executor != null) {
+			return this.executor;
+		}
+		
+		if(this.pool == null) {
+			this.pool = new ThreadPoolExecutor(this.threadNumber, this.threadNumber, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), (r) -> {
+				Thread thread = new Thread(r, "DTCOPCompressor");
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.pool.allowCoreThreadTimeOut(true);
+		}
+		
+		return this.pool;
+	}
+	
+	//decode all the chunks of the shard in parallel into array (shard shape)
+	private Array decode(ShardReader reader, Array array) throws IOException {
+		
+		try {
+			return reader.decodeAll(array, getExecutor());
+		} catch(IOException e) {
+			throw e;
+		} catch(Exception e) {
+			throw new IOException(e);
+		}
+		
+	}
+	
+	private byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		passThrough(is, baos);
+		return baos.toByteArray();
+	}
+	
 	
 	@Override public String getId() {
 		return "dtcop";
@@ -75,6 +141,8 @@ public class DTCOPCompressor extends Compressor {
 		throw new IllegalArgumentException("Not implemented");
 	}
 
+	//the zarr dtype and byte order are not known here : shards are decoded by uncompress(InputStream, Array) / uncompress(Store, ...)
+	//(ChunkReaderWriter routes compressors handling an Array or a Store to them)
 	@Override public void uncompress(InputStream is, OutputStream os) throws IOException {
 		throw new IllegalArgumentException("Not implemented");
 	}
@@ -83,15 +151,21 @@ public class DTCOPCompressor extends Compressor {
 		return true;
 	}
 	
+	//edge zarr chunk (array : its valid part) completed to the zarr chunk shape, padded as the edge chunks of the shards
+	//(jzarr would complete it with the fill value before compress(), see ZarrWriter)
+	public Array pad(Array array, int[] shape) {
+		return Shard.padEdge(array, shape, this.chunkShape, this.padding);
+	}
+	
 	@Override public void compress(Array array, OutputStream os) throws IOException {
 		
 		//TODO : remove debug
 		System.out.println("compress array " + Arrays.toString(array.getShape()));
 
-		Shard shard = new Shard(array,this.chunkShape);
+		Shard shard = new Shard(array,this.chunkShape,this.padding);
 
 		try(BufferedOutputStream bos = new BufferedOutputStream(os)) {
-			ShardWriter.write(bos, shard, this.qChunks, this.maxError, threadNumber);
+			ShardWriter.write(bos, shard, this.qChunks, this.maxError, getExecutor(), this.options);
 		} catch(Exception e) {
 			throw new IOException(e);
 		}
@@ -99,7 +173,49 @@ public class DTCOPCompressor extends Compressor {
 	}
     
 	@Override public Array uncompress(InputStream is, Array array) throws IOException {
-		throw new IllegalArgumentException("Not implemented");
+		
+		try(ShardReader reader = new ShardReader(ByteBuffer.wrap(readAll(is)))) {
+			return decode(reader, array);
+		} catch(IOException e) {
+			throw e;
+		} catch(Exception e) {
+			throw new IOException(e);
+		}
+		
+	}
+	
+	@Override public boolean canHandleStore() {
+		return true;
+	}
+	
+	//return null if storeKey is not in store (caller creates the filled array)
+	@Override public Array uncompress(Store store, String storeKey, DataType dataType, int[] shape) throws IOException {
+		
+		if(store instanceof FileSystemStore) {
+			
+			//read the shard file directly
+			File file = ((FileSystemStore)store).getFile(storeKey);
+			if(file.exists() == false) {
+				return null;
+			}
+			
+			try(ShardReader reader = new ShardReader(file)) {
+				return decode(reader, Array.factory(dataType, shape));
+			} catch(IOException e) {
+				throw e;
+			} catch(Exception e) {
+				throw new IOException(e);
+			}
+		}
+		else {
+			try(InputStream is = store.getInputStream(storeKey)) {
+				if(is == null) {
+					return null;
+				}
+				return uncompress(is, Array.factory(dataType, shape));
+			}
+		}
+		
 	}
     
 }
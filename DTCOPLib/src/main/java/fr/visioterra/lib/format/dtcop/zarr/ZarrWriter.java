@@ -3,7 +3,13 @@ package fr.visioterra.lib.format.dtcop.zarr;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -28,6 +34,9 @@ public class ZarrWriter {
 	public static boolean debug = false;
 	private final String path;
 	private final ZarrGroup root;
+	private final int pipelineDepth;						//max number of zarr chunks being written at the same time
+	private final ArrayDeque<Future<?>> pendingWrites = new ArrayDeque<>();
+	private ExecutorService writer = null;					//pipelined writes, null for sequential writes
 	
 	public long[] browse = new long[6]; //{ nb call, total time, nb read, read time, nb write, write time } 
 	
@@ -67,7 +76,23 @@ public class ZarrWriter {
 		int len      = raster.getShape().length;
 		int[] origin = new int[len];
 		int[] shape  = new int[len];
-		browse(raster, zArray, chunkSize, 0, origin, shape, filter);
+		
+		if(this.pipelineDepth > 1) {
+			this.writer = Executors.newFixedThreadPool(this.pipelineDepth);
+		}
+		
+		try {
+			browse(raster, zArray, chunkSize, 0, origin, shape, filter);
+			while(this.pendingWrites.isEmpty() == false) {
+				get(this.pendingWrites.poll());
+			}
+		} finally {
+			if(this.writer != null) {
+				this.writer.shutdownNow();
+				this.writer = null;
+			}
+			this.pendingWrites.clear();
+		}
 	}
 	
 	private void browse(RasterND raster, ZarrArray zArray, int[] chunkShape, int dim, int[] origin, int[] shape, ZarrFilter filter) throws Exception {
@@ -169,16 +194,7 @@ public class ZarrWriter {
 //				}
 				
 				this.browse[4]++;
-				long writeStart = System.nanoTime();				
-				if(filter == null) {
-					zArray.write(array, shape, origin);	
-				}
-				else {
-//					if (debug) sb.append(" - filter = ").append(filter.getClass().getSimpleName());
-					Array tmp = filter.encode(array);
-					zArray.write(tmp, shape, origin);
-				}
-				this.browse[5] += (System.nanoTime() - writeStart);
+				submitWrite(zArray, array, shape.clone(), origin.clone(), filter);
 				
 //				if (debug) System.out.println(sb.toString());
 				
@@ -194,9 +210,71 @@ public class ZarrWriter {
 		
 	}
 	
+	//write time (filter + compression + write) measured where the write runs, summed over the pipelined writes
+	private void write(ZarrArray zArray, Array array, int[] shape, int[] origin, ZarrFilter filter) throws Exception {
+		long writeStart = System.nanoTime();
+		
+		Array tmp = array;
+		if(filter != null) {
+//			if (debug) sb.append(" - filter = ").append(filter.getClass().getSimpleName());
+			tmp = filter.encode(array);
+		}
+		
+		//edge zarr chunk : padded by the DTCOP compressor (jzarr would complete it with the fill value, a step at the edge of the valid part)
+		int[] chunks = zArray.getChunks();
+		if(zArray.getCompressor() instanceof DTCOPCompressor && Arrays.equals(shape, chunks) == false) {
+			tmp = ((DTCOPCompressor)zArray.getCompressor()).pad(tmp, chunks);
+			shape = chunks;
+		}
+		
+		zArray.write(tmp, shape, origin);
+		
+		long writeTime = System.nanoTime() - writeStart;
+		synchronized(this.browse) {
+			this.browse[5] += writeTime;
+		}
+	}
+	
+	private static void get(Future<?> future) throws Exception {
+		try {
+			future.get();
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof Exception) {
+				throw (Exception)e.getCause();
+			}
+			throw e;
+		}
+	}
+	
+	//pipelined : the compression of a zarr chunk (e.g. Huffman coding of a DTCOP shard) overlaps the one of the next chunks (e.g. DCT)
+	//zarr chunks written at the same time are distinct (browse follows the chunk grid)
+	private void submitWrite(ZarrArray zArray, Array array, int[] shape, int[] origin, ZarrFilter filter) throws Exception {
+		
+		if(this.writer == null) {
+			write(zArray, array, shape, origin, filter);
+			return;
+		}
+		
+		while(this.pendingWrites.size() >= this.pipelineDepth) {
+			get(this.pendingWrites.poll());
+		}
+		
+		this.pendingWrites.add(this.writer.submit(() -> {
+			write(zArray, array, shape, origin, filter);
+			return null;
+		}));
+	}
+	
 	public ZarrWriter(String path) throws IOException {
+		this(path, 1);
+	}
+	
+	//pipelineDepth : number of zarr chunks compressed / written at the same time (1 : sequential),
+	//e.g. 2 with a DTCOPCompressor sharing its executor between the shards
+	public ZarrWriter(String path, int pipelineDepth) throws IOException {
 		this.path = path;
 		this.root = ZarrGroup.create(path);
+		this.pipelineDepth = pipelineDepth;
 	}
 	
 	public void encodeVariable(VariableSimpleIF variable, RasterND raster, int[] chunkSize) throws Exception {
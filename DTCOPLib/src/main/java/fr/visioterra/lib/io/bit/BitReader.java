@@ -7,8 +7,14 @@ public class BitReader implements AutoCloseable {
 	private final InputStream is;
 	private long buffer;
 	private int bitPos;
+	private int padBits = 0;		//number of zero bits appended by peekBits() after EOF
 	
 	
+	//for sub classes not reading from an InputStream
+	protected BitReader() {
+		this.is = null;
+	}
+	
 	public BitReader(InputStream is) throws Exception {
 		this.is = is;
 		this.buffer = this.is.read();
@@ -42,6 +48,10 @@ public class BitReader implements AutoCloseable {
 //			System.out.println("buffer = " + Long.toBinaryString(this.buffer) + "  /  bitPos = " + this.bitPos + " (read 1 byte)");
 		}
 		
+		if(this.bitPos - len < this.padBits) {
+			throw new IllegalArgumentException("EOF reached");
+		}
+		
 		long mask = (0x0000000000000001L << len) - 1;
 		long r = (this.buffer >> (this.bitPos - len)) & mask;
 		this.bitPos = this.bitPos - len;
@@ -52,8 +62,47 @@ public class BitReader implements AutoCloseable {
 		
 	}
 	
+	//return the next len bits without consuming them (zero padded after EOF)
+	public long peekBits(int len) throws Exception {
+		
+		if(len > 64-8) {
+			throw new IllegalArgumentException("Cannot read more than 56 bits at once");
+		}
+		
+		while(len > this.bitPos) {
+			
+			long r = this.is.read();
+			if(r < 0) {
+				r = 0;
+				this.padBits += 8;
+			}
+			this.buffer = (this.buffer << 8) | r;
+			this.bitPos += 8;
+		}
+		
+		long mask = (0x0000000000000001L << len) - 1;
+		return (this.buffer >> (this.bitPos - len)) & mask;
+	}
+	
+	//consume len bits, usually after a call to peekBits(len)
+	public void skipBits(int len) throws Exception {
+		
+		if(len > this.bitPos) {
+			readBits(len);
+		}
+		else if(this.bitPos - len < this.padBits) {
+			throw new IllegalArgumentException("EOF reached");
+		}
+		else {
+			this.bitPos = this.bitPos - len;
+		}
+		
+	}
+	
 	@Override public void close() throws Exception {
-		this.is.close();
+		if(this.is != null) {
+			this.is.close();
+		}
 	}
 	
 }
@@ -1,74 +1,88 @@
 package fr.visioterra.lib.io.bit;
 
 import java.io.OutputStream;
-import java.util.Arrays;
 
 public class BitWriter implements AutoCloseable {
 
 	private final OutputStream os;
 	private final byte[] buffer;
+	private final int bufLength;		//requested buffer length, the trailing empty byte depends on it
 	
-	private int emptyBits;
-	private int bufIndex;
+	private int bufIndex = 0;
+	private long acc = 0;				//right aligned : last written bit is the least significant one
+	private int accBits = 0;			//number of bits in acc (< 32 between calls)
+	private long bitCount = 0;			//number of bits written since the last flush
+	private boolean emptyByte = false;	//a code ending on a byte boundary has opened a new (empty) byte
 	
 	public BitWriter(OutputStream os, int bufLength) {
 		this.os = os;
-		this.buffer = new byte[bufLength];
-		
-		this.emptyBits = 8;
-		this.bufIndex = 0;
+		this.buffer = new byte[Math.max(bufLength, 8)];
+		this.bufLength = bufLength;
 	}
 
-	private void flush(int len) throws Exception {
-		os.write(this.buffer, 0, len);
-		
-		// Reset the bytes buffer index
-		bufIndex = 0;
-		Arrays.fill(this.buffer, 0, len, (byte) 0x00);
+	private void putByte(int b) throws Exception {
+		if(this.bufIndex == this.buffer.length) {
+			this.os.write(this.buffer, 0, this.bufIndex);
+			this.bufIndex = 0;
+		}
+		this.buffer[this.bufIndex++] = (byte)b;
 	}
 	
 	public void writeBits(int code, int codeLen) throws Exception {
 		
-		if (emptyBits == 0) {
-			if (++bufIndex >= buffer.length) flush(buffer.length);
-			emptyBits = 8;
+		if(codeLen < 0 || 32 < codeLen) {
+			throw new IllegalArgumentException("Cannot write more than 32 bits at once");
 		}
 		
-		// If we have enough space for the code
-		if (codeLen < emptyBits) {
-			int mask = (1 << codeLen) - 1;
-			buffer[bufIndex] |= ((code & mask) << (emptyBits - codeLen));
-			emptyBits -= codeLen;
+		//the writer only moves to the next byte if bits follow, except when a code exactly fills the current byte
+		int used = (int)(this.bitCount & 7);
+		if(codeLen == 0) {
+			this.emptyByte = this.emptyByte || (used == 0 && this.bitCount > 0);
+			return;
 		}
-		else { // Otherwise
-			// write remaining bits available
-			buffer[bufIndex] |= ((code >>> (codeLen - emptyBits)) & ((1 << emptyBits) - 1));
-			if (++bufIndex >= buffer.length) flush(buffer.length);
-			
-			// update codeLen
-			codeLen -= emptyBits;
-
-			// write middle of the code if there is more than 8bits left
-			emptyBits = 8;
-			while (codeLen > 8) {
-				buffer[bufIndex] = (byte) ((code >>> (codeLen - 8)) & 0xff);
-				if (++bufIndex >= buffer.length) flush(buffer.length);
-				
-				codeLen -= emptyBits;
-			}
-
-			// write end of the code
-			int mask = (1 << codeLen) - 1;
-			buffer[bufIndex] |= ((code & mask) << (emptyBits - codeLen));
-			emptyBits -= codeLen;
+		this.emptyByte = (codeLen == 8 - used);
+		
+		this.acc = (this.acc << codeLen) | (code & (0xFFFFFFFFL >>> (32 - codeLen)));
+		this.accBits += codeLen;
+		this.bitCount += codeLen;
+		
+		//emit 4 bytes at a time
+		if(this.accBits >= 32) {
+			this.accBits -= 32;
+			int value = (int)(this.acc >>> this.accBits);
+			putByte(value >>> 24);
+			putByte(value >>> 16);
+			putByte(value >>> 8);
+			putByte(value);
 		}
 	}
 	
 	public void flush() throws Exception {
-		if (bufIndex > 0 || this.emptyBits != 8) {
-			flush(bufIndex+1);
-			this.emptyBits = 8;
+		
+		if(this.bitCount == 0) {
+			return;
 		}
+		
+		while(this.accBits >= 8) {
+			this.accBits -= 8;
+			putByte((int)(this.acc >>> this.accBits));
+		}
+		
+		if(this.accBits > 0) {
+			putByte((int)(this.acc << (8 - this.accBits)));
+		}
+		
+		//trailing empty byte, not written when a full buffer of bufLength bytes has just been emitted
+		if(this.emptyByte && (this.bitCount >>> 3) % this.bufLength != 0) {
+			putByte(0);
+		}
+		
+		this.os.write(this.buffer, 0, this.bufIndex);
+		this.bufIndex = 0;
+		this.acc = 0;
+		this.accBits = 0;
+		this.bitCount = 0;
+		this.emptyByte = false;
 	}
 	
 	@Override public void close() throws Exception {
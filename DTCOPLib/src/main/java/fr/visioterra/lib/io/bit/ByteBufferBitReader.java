@@ -0,0 +1,112 @@
+package fr.visioterra.lib.io.bit;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+//BitReader reading directly a byte[] or a ByteBuffer, with 64 bits refills
+public class ByteBufferBitReader extends BitReader {
+	
+	private final ByteBuffer bb;
+	private final int limit;
+	private int pos;
+	private long cache = 0;			//left aligned : next bit is the most significant one
+	private int cacheBits = 0;		//number of valid bits in cache
+	
+	
+	public ByteBufferBitReader(byte[] data) {
+		this(ByteBuffer.wrap(data));
+	}
+	
+	public ByteBufferBitReader(byte[] data, int offset, int length) {
+		this(ByteBuffer.wrap(data, offset, length));
+	}
+	
+	//read the bytes between bb.position() and bb.limit(), bb is not modified
+	public ByteBufferBitReader(ByteBuffer bb) {
+		super();
+		this.bb = bb.duplicate().order(ByteOrder.BIG_ENDIAN);
+		this.pos = bb.position();
+		this.limit = bb.limit();
+	}
+	
+	private void refill() {
+		
+		if(this.pos + 8 <= this.limit) {
+			//bits already loaded behind cacheBits are the same bytes, OR is harmless
+			int n = (64 - this.cacheBits) >>> 3;
+			this.cache |= this.bb.getLong(this.pos) >>> this.cacheBits;
+			this.pos += n;
+			this.cacheBits += n << 3;
+		}
+		else {
+			while(this.cacheBits <= 56 && this.pos < this.limit) {
+				this.cache |= (this.bb.get(this.pos++) & 0xFFL) << (56 - this.cacheBits);
+				this.cacheBits += 8;
+			}
+		}
+		
+	}
+	
+	@Override public long readBits(int len) throws Exception {
+		
+		if(len > 64-8) {
+			throw new IllegalArgumentException("Cannot read more than 56 bits at once");
+		}
+		
+		if(len == 0) {
+			return 0;
+		}
+		
+		if(len > this.cacheBits) {
+			refill();
+			if(len > this.cacheBits) {
+				throw new IllegalArgumentException("EOF reached");
+			}
+		}
+		
+		long r = this.cache >>> (64 - len);
+		this.cache <<= len;
+		this.cacheBits -= len;
+		return r;
+	}
+	
+	//return the next len bits without consuming them (zero padded after EOF)
+	@Override public long peekBits(int len) throws Exception {
+		
+		if(len > 64-8) {
+			throw new IllegalArgumentException("Cannot read more than 56 bits at once");
+		}
+		
+		if(len == 0) {
+			return 0;
+		}
+		
+		if(len > this.cacheBits) {
+			refill();
+		}
+		
+		return this.cache >>> (64 - len);
+	}
+	
+	@Override public void skipBits(int len) throws Exception {
+		
+		if(len > 64-8) {
+			throw new IllegalArgumentException("Cannot read more than 56 bits at once");
+		}
+		
+		if(len > this.cacheBits) {
+			refill();
+			if(len > this.cacheBits) {
+				throw new IllegalArgumentException("EOF reached");
+			}
+		}
+		
+		this.cache <<= len;
+		this.cacheBits -= len;
+	}
+	
+	@Override public void close() throws Exception {
+		
+	}
+	
+}
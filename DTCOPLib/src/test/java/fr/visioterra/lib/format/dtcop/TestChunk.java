@@ -0,0 +1,462 @@
+package fr.visioterra.lib.format.dtcop;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import fr.visioterra.lib.format.dtcop.chunk.Cell;
+import fr.visioterra.lib.format.dtcop.chunk.Chunk;
+import fr.visioterra.lib.format.dtcop.chunk.ChunkWriter;
+import fr.visioterra.lib.format.dtcop.huffman.Histogram;
+import fr.visioterra.lib.format.dtcop.huffman.Huffman;
+import fr.visioterra.lib.format.dtcop.quantization.QuantChunk;
+import fr.visioterra.lib.io.stream.ByteArrayInputStream;
+import fr.visioterra.lib.io.stream.ByteArrayOutputStream;
+import fr.visioterra.lib.tools.Benchmark;
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.Index;
+
+public class TestChunk {
+
+	private static Chunk randomChunk(Random random, int[] shape) {
+		Array array = Array.factory(DataType.FLOAT, shape);
+		float[] data = (float[])array.getStorage();
+		for(int i = 0 ; i < data.length ; i++) {
+			data[i] = (float)(random.nextGaussian() * 1000.0);
+		}
+		return new Chunk(array);
+	}
+
+	private static void assertIdentical(Chunk c1, Chunk c2, String message) {
+		float[] d1 = (float[])c1.getArray().getStorage();
+		float[] d2 = (float[])c2.getArray().getStorage();
+		for(int i = 0 ; i < d1.length ; i++) {
+			if(Float.floatToIntBits(d1[i]) != Float.floatToIntBits(d2[i])) {
+				throw new IllegalStateException(message + " : mismatch at " + i + " (" + d1[i] + " != " + d2[i] + ")");
+			}
+		}
+	}
+
+	//compare Index based transforms with flat float[] transforms
+	public static void flatTransform(int[] shape, int count) {
+
+		Random random = new Random(shape.length * 1000 + count);
+
+		for(int c = 0 ; c < count ; c++) {
+
+			Chunk ref  = randomChunk(random, shape);
+			Chunk flat = ref.copy();
+
+			Chunk.fastTransform = false;
+			Chunk.flatTransform = false;
+			ref.dct();
+			Chunk.flatTransform = true;
+			flat.dct();
+			assertIdentical(ref, flat, "dct");
+
+			Chunk.flatTransform = false;
+			ref.idct();
+			Chunk.flatTransform = true;
+			flat.idct();
+			assertIdentical(ref, flat, "idct");
+		}
+
+		System.out.println("flatTransform " + shape.length + "D : " + count + " chunks OK");
+	}
+
+	private static void assertClose(Chunk ref, Chunk fast, double tolerance, String message) {
+		float[] d1 = (float[])ref.getArray().getStorage();
+		float[] d2 = (float[])fast.getArray().getStorage();
+		double maxRef = 0.0;
+		double maxDiff = 0.0;
+		for(int i = 0 ; i < d1.length ; i++) {
+			maxRef  = Math.max(maxRef, Math.abs(d1[i]));
+			maxDiff = Math.max(maxDiff, Math.abs(d1[i] - d2[i]));
+		}
+		if(maxDiff > tolerance * maxRef) {
+			throw new IllegalStateException(message + " : relative error " + (maxDiff / maxRef) + " > " + tolerance);
+		}
+	}
+
+	//compare the direct O(N^2) flat transforms with the fast O(N log N) ones
+	public static void fastTransform(int[] shape, int count) {
+
+		Random random = new Random(shape.length * 2000 + count);
+		Chunk.flatTransform = true;
+
+		for(int c = 0 ; c < count ; c++) {
+
+			Chunk ref  = randomChunk(random, shape);
+			Chunk fast = ref.copy();
+			Chunk orig = ref.copy();
+
+			Chunk.fastTransform = false;
+			ref.dct();
+			Chunk.fastTransform = true;
+			fast.dct();
+			assertClose(ref, fast, 1e-5, "fast dct");
+
+			Chunk.fastTransform = false;
+			ref.idct();
+			Chunk.fastTransform = true;
+			fast.idct();
+			assertClose(ref, fast, 1e-5, "fast idct");
+			assertClose(orig, fast, 1e-5, "fast round trip");
+		}
+
+		System.out.println("fastTransform " + shape.length + "D " + shape[0] + " : " + count + " chunks OK");
+	}
+
+	private static Chunk smoothChunk(Random random, int[] shape, double noise) {
+		Array array = Array.factory(DataType.FLOAT, shape);
+		float[] data = (float[])array.getStorage();
+		double a = random.nextDouble() * 1000.0;
+		double f = random.nextDouble() * 0.3;
+		int idx = 0;
+		for(int k = 0 ; k < shape[0] ; k++) {
+			for(int j = 0 ; j < shape[1] ; j++) {
+				for(int i = 0 ; i < shape[2] ; i++) {
+					data[idx++] = (float)(a * Math.sin(f * (k + 0.5 * j) + 0.2 * i) + random.nextGaussian() * noise);
+				}
+			}
+		}
+		return new Chunk(array);
+	}
+	
+	private static ArrayList<QuantChunk> quantChunks(int[] shape) {
+		
+		float scale = (float)Math.pow(Math.sqrt(2), 15) * shape[0] / 32.0f;
+		
+		ArrayList<QuantChunk> qChunks = new ArrayList<>();
+		for(float p1 : new float[] {40.0f, 20.0f, 10.0f, 5.0f}) {
+			qChunks.add(new QuantChunk(shape, new float[] {scale * 2.0f, p1}, qChunks.size()));
+		}
+		for(float s : new float[] {1.5f, 1.0f, 1.0f / 1.5f, 0.5f, 1.0f / 3.0f, 0.25f, 0.2f}) {
+			qChunks.add(new QuantChunk(shape, new float[] {scale * s}, qChunks.size()));
+		}
+		return qChunks;
+	}
+	
+	//exact max abs error of a quantization matrix
+	private static double quantError(Chunk origin, Chunk dct, QuantChunk qc) {
+		Chunk tmp = dct.copy();
+		tmp.roundTripScale(qc);
+		tmp.idct();
+		return tmp.getMaxAbsDiff(origin);
+	}
+	
+	//compare bisection search (with several seeds) with the linear scan when error is monotonic along the ladder
+	public static void quantSearch(int[] shape, int count) throws Exception {
+		
+		Random random = new Random(count);
+		ArrayList<QuantChunk> qChunks = quantChunks(shape);
+		
+		Cell[] order = Cell.order(shape, true);
+		int monotonic = 0;
+		
+		for(int c = 0 ; c < count ; c++) {
+			
+			Chunk origin = smoothChunk(random, shape, random.nextDouble() * 5.0);
+			double maxError = 0.5 + random.nextDouble() * 20.0;
+			
+			//errors along the ladder
+			Chunk dct = origin.copy();
+			dct.dct();
+			boolean accepted = false;
+			boolean isMonotonic = true;
+			for(QuantChunk qc : qChunks) {
+				boolean ok = quantError(origin, dct, qc) < maxError;
+				isMonotonic = isMonotonic && (ok || accepted == false);
+				accepted = accepted || ok;
+			}
+			
+			if(isMonotonic == false) {
+				continue;
+			}
+			monotonic++;
+			
+			Histogram histogram = new Histogram(256*256, Short.MAX_VALUE);
+			ChunkWriter.bisection = false;
+			int expected = new ChunkWriter(origin, qChunks, maxError, order, histogram).getQuantIdx();
+			
+			ChunkWriter.bisection = true;
+			for(int seed = -1 ; seed < qChunks.size() ; seed++) {
+				int idx = new ChunkWriter(origin, qChunks, maxError, order, histogram, seed).getQuantIdx();
+				if(idx != expected) {
+					throw new IllegalStateException("quantSearch : chunk " + c + " / seed " + seed + " => " + idx + " instead of " + expected);
+				}
+			}
+		}
+		
+		if(monotonic == 0) {
+			throw new IllegalStateException("quantSearch : no monotonic chunk");
+		}
+		
+		System.out.println("quantSearch " + shape[0] + " : " + monotonic + "/" + count + " monotonic chunks OK");
+	}
+	
+	//the DCT domain bounds must never accept a QuantChunk exceeding maxError
+	public static void errorBound(int[] shape, int count) throws Exception {
+		
+		Random random = new Random(count + 1);
+		ArrayList<QuantChunk> qChunks = quantChunks(shape);
+		Cell[] order = Cell.order(shape, true);
+		ChunkWriter.bisection = false;
+		
+		int same = 0;
+		for(int c = 0 ; c < count ; c++) {
+			
+			Chunk origin = (c % 2 == 0) ? randomChunk(random, shape) : smoothChunk(random, shape, random.nextDouble() * 5.0);
+			double maxError = (c % 2 == 0) ? 100.0 + random.nextDouble() * 3000.0 : 0.5 + random.nextDouble() * 20.0;
+			Chunk dct = origin.copy();
+			dct.dct();
+			
+			Histogram histogram = new Histogram(256*256, Short.MAX_VALUE);
+			ChunkWriter.errorBound = false;
+			int expected = new ChunkWriter(origin, qChunks, maxError, order, histogram).getQuantIdx();
+			ChunkWriter.errorBound = true;
+			int idx = new ChunkWriter(origin, qChunks, maxError, order, histogram).getQuantIdx();
+			
+			//last QuantChunk is the fallback when none meets maxError
+			double error = quantError(origin, dct, qChunks.get(idx));
+			if(error >= maxError && idx != qChunks.size() - 1) {
+				throw new IllegalStateException("errorBound : chunk " + c + " => " + idx + " error " + error + " >= " + maxError);
+			}
+			if(idx == expected) {
+				same++;
+			}
+		}
+		
+		ChunkWriter.bisection = true;
+		
+		System.out.println("errorBound " + shape[0] + " : " + count + " chunks OK (" + same + " same choice as the exact check)");
+	}
+	
+	//cached permutation must match the Cell ordering, for gather (getAsIntArray) and scatter (constructor)
+	public static void zigzagPermutation(int[] shape) {
+		
+		Random random = new Random(shape.length);
+		
+		for(boolean zigzag : new boolean[] {true, false}) {
+			
+			Cell[] cells = Cell.order(shape, zigzag);
+			int[] permutation = Cell.permutation(shape, zigzag);
+			
+			//callers get a copy : writing to it must not corrupt the cached permutation
+			int[] copy = Cell.permutation(shape, zigzag);
+			if(copy == permutation || Arrays.equals(copy, permutation) == false) {
+				throw new IllegalStateException("zigzagPermutation : permutation is not a copy of the cached one");
+			}
+			Arrays.fill(copy, 0);
+			if(Arrays.equals(permutation, Cell.permutation(shape, zigzag)) == false) {
+				throw new IllegalStateException("zigzagPermutation : cached permutation modified by a caller");
+			}
+			
+			Chunk chunk = randomChunk(random, shape);
+			Index index = chunk.getArray().getIndex();
+			
+			for(int i = 0 ; i < cells.length ; i++) {
+				index.set(cells[i].getCoordinates());
+				if(index.currentElement() != permutation[i]) {
+					throw new IllegalStateException("zigzagPermutation : position " + i + " => " + permutation[i] + " instead of " + index.currentElement());
+				}
+			}
+			
+			int[] values = chunk.getAsIntArray(permutation);
+			if(Arrays.equals(values, chunk.getAsIntArray(cells)) == false) {
+				throw new IllegalStateException("zigzagPermutation : gather mismatch");
+			}
+			
+			int[] scatter = (int[])new Chunk(DataType.INT, shape, values, permutation).getArray().getStorage();
+			int[] expected = (int[])new Chunk(DataType.INT, shape, values, cells).getArray().getStorage();
+			if(Arrays.equals(scatter, expected) == false) {
+				throw new IllegalStateException("zigzagPermutation : scatter mismatch");
+			}
+		}
+		
+		System.out.println("zigzagPermutation " + Arrays.toString(shape) + " OK");
+	}
+	
+	//quantization polynoms of DTCOPCompressor (32x32x32 chunks)
+	private static float[][] compressorPolynoms() {
+		float scale = (float)Math.pow(Math.sqrt(2), 15);
+		return new float[][] {
+			{scale * 3.0f, 40.0f, 50.0f}, {scale * 3.0f, 30.0f, 40.0f},
+			{scale * 2.0f, 30.0f, 30.0f}, {scale * 2.0f, 25.0f, 20.0f}, {scale * 2.0f, 20.0f, 10.0f},
+			{scale * 1.5f, 20.0f}, {scale * 1.5f, 15.0f}, {scale * 1.5f, 10.0f},
+			{scale * 1.0f, 8.0f}, {scale * 1.0f, 4.0f}, {scale * 1.0f, 2.0f}, {scale * 1.0f, 1.0f}, {scale * 1.0f},
+			{scale / 1.5f}, {scale / 2.0f}, {scale / 3.0f}, {scale / 4.0f}, {scale / 5.0f}
+		};
+	}
+	
+	//compare the sparse iDCT with the full one on chunks quantized with each polynom of DTCOPCompressor, and benchmark them
+	public static void sparseTransform(int count) throws Exception {
+		
+		int[] shape = new int[] {32,32,32};
+		int[] permutation = Cell.permutation(shape, true);
+		Random random = new Random(count + 2);
+		
+		for(float[] polynom : compressorPolynoms()) {
+			
+			QuantChunk qc = new QuantChunk(shape, polynom);
+			Benchmark bFull = new Benchmark("full");
+			Benchmark bSparse = new Benchmark("sparse");
+			int zeros = 0;
+			
+			for(int c = 0 ; c < count ; c++) {
+				
+				//quantized coefficients of a smooth chunk (amplitude of INT16 data)
+				Chunk origin = smoothChunk(random, shape, 50.0);
+				origin.scale(20.0, 0.0);
+				Chunk dct = origin.copy();
+				dct.dct();
+				dct.roundTripScale(qc);
+				float[] coefs = (float[])dct.getArray().getStorage();
+				
+				int lastScan = 0;
+				for(int i = 0 ; i < permutation.length ; i++) {
+					if(coefs[permutation[i]] != 0.0f) {
+						lastScan = i;
+					}
+					else {
+						zeros++;
+					}
+				}
+				
+				for(boolean fast : new boolean[] {false, true}) {
+					
+					Chunk.fastTransform = fast;
+					float[] full = coefs.clone();
+					float[] sparse = coefs.clone();
+					
+					//benchmark the default (fast) transform
+					if(fast) {
+						bFull.start();
+					}
+					Chunk.idct(full, shape);
+					if(fast) {
+						bFull.stop();
+						bSparse.start();
+					}
+					Chunk.idct(sparse, shape, permutation, lastScan);
+					if(fast) {
+						bSparse.stop();
+					}
+					
+					//truncated sums are the direct sums without zero terms, they only differ from the fast transform by rounding
+					Chunk ref = new Chunk(Array.factory(DataType.FLOAT, shape, full));
+					Chunk out = new Chunk(Array.factory(DataType.FLOAT, shape, sparse));
+					if(fast) {
+						assertClose(ref, out, 1e-5, "sparse idct");
+					}
+					else {
+						assertIdentical(ref, out, "sparse idct");
+					}
+				}
+			}
+			
+			System.out.println("sparseTransform " + Arrays.toString(polynom) + " : " + (100L * zeros / ((long)count * permutation.length)) + "% zeros / " + bFull + " / " + bSparse);
+		}
+		
+		Chunk.fastTransform = true;
+	}
+	
+	//used heap after full GCs, until it does not decrease anymore
+	private static long liveHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for(int i = 0 ; i < 10 ; i++) {
+			System.gc();
+			long u = runtime.totalMemory() - runtime.freeMemory();
+			if(u >= used) {
+				break;
+			}
+			used = u;
+		}
+		return used;
+	}
+	
+	//ChunkWriter keeps 16bits coefficients (+ escaped DC) : check the resident size and the state round trip
+	public static void coefficientFootprint(int[] shape, int count, boolean runLength) throws Exception {
+		
+		Random random = new Random(count);
+		ArrayList<QuantChunk> qChunks = quantChunks(shape);
+		int[] order = Cell.permutation(shape, true);
+		Histogram histogram = new Histogram(256*256 + ChunkWriter.maxRunLen + 1, Short.MAX_VALUE);
+		
+		Chunk[] origins = new Chunk[count];
+		for(int c = 0 ; c < count ; c++) {
+			origins[c] = smoothChunk(random, shape, 1.0);
+			//large offset every other chunk => DC out of the 16bits range
+			if(c % 2 == 0) {
+				origins[c].scale(1.0, 1.0e6);
+			}
+		}
+		
+		ChunkWriter[] writers = new ChunkWriter[count];
+		for(int c = 0 ; c < count ; c++) {
+			writers[c] = new ChunkWriter(origins[c], qChunks, 1.0, order, histogram, -1, runLength);
+		}
+		
+		Huffman huffman = histogram.getHuffman();
+		for(int c = 0 ; c < count ; c++) {
+			
+			byte[] bytes = writers[c].getBytes(huffman);
+			
+			//DC coefficient (after shape and polynom)
+			Chunk dct = origins[c].copy();
+			dct.dct();
+			dct.scale(qChunks.get(writers[c].getQuantIdx()), false, true);
+			int expected = dct.getAsIntArray(order)[0];
+			ByteBuffer bb = ByteBuffer.wrap(bytes);
+			bb.position(1 + shape.length);
+			bb.position(bb.position() + 1 + 4 * (bb.get() & 0xFF));
+			if(bb.getInt() != expected) {
+				throw new IllegalStateException("coefficientFootprint : chunk " + c + " invalid DC coefficient");
+			}
+			
+			//state round trip
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			writers[c].writeState(baos);
+			ChunkWriter read = ChunkWriter.readState(new ByteArrayInputStream(baos.toByteArray()));
+			if(Arrays.equals(bytes, read.getBytes(huffman)) == false) {
+				throw new IllegalStateException("coefficientFootprint : chunk " + c + " state round trip differs");
+			}
+		}
+		
+		//resident size of the writers (int[] coefficients would be 4 bytes per coefficient)
+		origins = null;
+		long resident = liveHeap();
+		Arrays.fill(writers, null);
+		resident -= liveHeap();
+		
+		int size = shape[0] * shape[1] * shape[2];
+		double bytesPerCoef = (double)resident / count / size;
+		if(bytesPerCoef > 3.0) {
+			throw new IllegalStateException("coefficientFootprint : " + bytesPerCoef + " bytes per coefficient");
+		}
+		
+		System.out.println("coefficientFootprint (runLength=" + runLength + ") : " + count + " chunks / " + String.format("%.2f", bytesPerCoef) + " bytes per coefficient OK");
+	}
+	
+	public static void main(String[] args) throws Exception {
+		flatTransform(new int[] {32,32,32}, 20);
+		flatTransform(new int[] {32,32}, 20);
+		flatTransform(new int[] {8,8,8}, 20);
+		fastTransform(new int[] {32,32,32}, 20);
+		fastTransform(new int[] {16,16,16}, 20);
+		fastTransform(new int[] {8,8}, 20);
+		fastTransform(new int[] {32,32}, 20);
+		zigzagPermutation(new int[] {32,32,32});
+		zigzagPermutation(new int[] {8,16,4});
+		quantSearch(new int[] {16,16,16}, 100);
+		errorBound(new int[] {16,16,16}, 200);
+		errorBound(new int[] {32,32,32}, 20);
+		sparseTransform(20);
+		coefficientFootprint(new int[] {32,32,32}, 128, false);
+		coefficientFootprint(new int[] {32,32,32}, 128, true);
+	}
+
+}
@@ -0,0 +1,253 @@
+package fr.visioterra.lib.format.dtcop;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.bc.zarr.ZarrArray;
+import com.bc.zarr.chunk.ChunkReaderWriter;
+
+import fr.visioterra.lib.data.RasterND;
+import fr.visioterra.lib.format.dtcop.shard.ShardReader;
+import fr.visioterra.lib.format.dtcop.zarr.DTCOPCompressor;
+import fr.visioterra.lib.format.dtcop.zarr.ZarrWriter;
+import fr.visioterra.lib.image.dataBuffer.DataType;
+import ucar.ma2.Array;
+import ucar.ma2.Index;
+import ucar.ma2.Section;
+import ucar.nc2.AttributeContainerMutable;
+import ucar.nc2.Dimension;
+
+public class TestDTCOPCompressor {
+	
+	//in-memory INT16 raster
+	private static class ArrayRaster implements RasterND {
+		
+		private final Array array;
+		
+		public ArrayRaster(Array array) {
+			this.array = array;
+		}
+		
+		@Override public List<Dimension> getDimensions()         { return new ArrayList<>(); }
+		@Override public int[] getShape()                        { return this.array.getShape(); }
+		@Override public int getLength(int dimension)            { return this.array.getShape()[dimension]; }
+		@Override public int getLength(String dimension)         { throw new UnsupportedOperationException(); }
+		@Override public int getDataType()                       { return DataType.TYPE_INT16; }
+		@Override public double getScaleFactor()                 { return 1.0; }
+		@Override public double getAddOffset()                   { return 0.0; }
+		@Override public ucar.ma2.DataType getArrayDataType()    { return ucar.ma2.DataType.SHORT; }
+		
+		@Override public Array getArray(Section section) throws Exception {
+			return this.array.section(section.getRanges()).copy();
+		}
+		
+		@Override public int getSampleInt(int[] coordinates)     { return this.array.getInt(this.array.getIndex().set(coordinates)); }
+		@Override public long getSampleLong(int[] coordinates)   { return getSampleInt(coordinates); }
+		@Override public float getSampleFloat(int[] coordinates) { return getSampleInt(coordinates); }
+		@Override public double getSampleDouble(int[] coordinates) { return getSampleInt(coordinates); }
+		@Override public int getSampleInt(Index index)           { return this.array.getInt(index); }
+		@Override public long getSampleLong(Index index)         { return this.array.getInt(index); }
+		@Override public float getSampleFloat(Index index)       { return this.array.getInt(index); }
+		@Override public double getSampleDouble(Index index)     { return this.array.getInt(index); }
+		
+		@Override public void close() throws Exception {
+			
+		}
+		
+	}
+	
+	private static Array syntheticArray(int[] shape, long seed) {
+		Random random = new Random(seed);
+		Array array = Array.factory(ucar.ma2.DataType.SHORT, shape);
+		short[] data = (short[])array.getStorage();
+		int idx = 0;
+		for(int k = 0 ; k < shape[0] ; k++) {
+			for(int j = 0 ; j < shape[1] ; j++) {
+				for(int i = 0 ; i < shape[2] ; i++) {
+					double v = 10000.0 * Math.sin(k * 0.05) + 5000.0 * Math.cos(j * 0.07 + i * 0.03) + random.nextGaussian() * 20.0;
+					data[idx++] = (short)Math.round(v);
+				}
+			}
+		}
+		return array;
+	}
+	
+	//write with ZarrWriter + DTCOPCompressor, read back with the generic ZarrArray.read()
+	public static void roundTrip(int[] shape, int[] shardShape, double maxError) throws Exception {
+		
+		File dir = Files.createTempDirectory("dtcop").toFile();
+		Array expected = syntheticArray(shape, 42);
+		
+		ChunkReaderWriter.writeVersion = 1;
+		
+		ZarrWriter zw = new ZarrWriter(dir.getAbsolutePath());
+		try(ArrayRaster raster = new ArrayRaster(expected)) {
+			zw.encodeVariable(new ArrayList<Dimension>(), new AttributeContainerMutable("var"), "var", raster, shardShape, null, new DTCOPCompressor(null, maxError, 4));
+		}
+		
+		ChunkReaderWriter.writeVersion = 0;
+		
+		//DTCOPCompressor handles Array / Store : read through the same path whatever ChunkReaderWriter.readVersion
+		ZarrArray zArray = ZarrArray.open(dir.getAbsolutePath() + File.separator + "var");
+		short[] actual = (short[])zArray.read();
+		short[] data = (short[])expected.getStorage();
+		
+		//DTCOP bounds the float error, decoding to INT16 adds the rounding
+		double maxDiff = 0.0;
+		for(int i = 0 ; i < data.length ; i++) {
+			double diff = Math.abs(actual[i] - data[i]);
+			if(diff > maxError + 0.5) {
+				throw new IllegalStateException("sample " + i + " : " + actual[i] + " instead of " + data[i] + " (maxError = " + maxError + ")");
+			}
+			maxDiff = Math.max(maxDiff, diff);
+		}
+		
+		System.out.println("roundTrip : " + data.length + " samples / max diff = " + maxDiff + " OK");
+	}
+	
+	private static File write(Array array, int[] shardShape, int pipelineDepth, DTCOPCompressor compressor, long[] browse) throws Exception {
+		File dir = Files.createTempDirectory("dtcop").toFile();
+		ZarrWriter zw = new ZarrWriter(dir.getAbsolutePath(), pipelineDepth);
+		ChunkReaderWriter.writeVersion = 1;
+		try(ArrayRaster raster = new ArrayRaster(array)) {
+			zw.encodeVariable(new ArrayList<Dimension>(), new AttributeContainerMutable("var"), "var", raster, shardShape, null, compressor);
+		} finally {
+			ChunkReaderWriter.writeVersion = 0;
+		}
+		System.arraycopy(zw.browse, 0, browse, 0, browse.length);
+		return new File(dir, "var");
+	}
+	
+	//pipelined writes (depth 2, executor shared by the shards) must produce the same zarr chunks as the sequential writes
+	public static void pipelinedWrite(int[] shape, int[] shardShape, double maxError) throws Exception {
+		
+		Array expected = syntheticArray(shape, 43);
+		
+		long[] sequentialBrowse = new long[6];
+		File sequential = write(expected, shardShape, 1, new DTCOPCompressor(null, maxError, 4), sequentialBrowse);
+		
+		long[] pipelinedBrowse = new long[6];
+		File pipelined;
+		ExecutorService executor = new ForkJoinPool(4);
+		try {
+			pipelined = write(expected, shardShape, 2, new DTCOPCompressor(null, maxError, executor), pipelinedBrowse);
+		} finally {
+			executor.shutdown();
+		}
+		
+		String[] names = sequential.list();
+		Arrays.sort(names);
+		String[] pipelinedNames = pipelined.list();
+		Arrays.sort(pipelinedNames);
+		if(Arrays.equals(names, pipelinedNames) == false) {
+			throw new IllegalStateException("pipelinedWrite : " + Arrays.toString(pipelinedNames) + " instead of " + Arrays.toString(names));
+		}
+		
+		for(String name : names) {
+			if(name.startsWith(".")) {
+				continue;
+			}
+			byte[] b1 = Files.readAllBytes(new File(sequential, name).toPath());
+			byte[] b2 = Files.readAllBytes(new File(pipelined, name).toPath());
+			if(Arrays.equals(b1, b2) == false) {
+				throw new IllegalStateException("pipelinedWrite : chunk " + name + " differs");
+			}
+		}
+		
+		short[] actual = (short[])ZarrArray.open(pipelined.getAbsolutePath()).read();
+		short[] reference = (short[])ZarrArray.open(sequential.getAbsolutePath()).read();
+		if(Arrays.equals(reference, actual) == false) {
+			throw new IllegalStateException("pipelinedWrite : decoded arrays differ");
+		}
+		
+		//write time measured inside the pipelined tasks (compression included)
+		if(pipelinedBrowse[4] != sequentialBrowse[4] || pipelinedBrowse[5] <= 0) {
+			throw new IllegalStateException("pipelinedWrite : " + pipelinedBrowse[4] + " writes in " + pipelinedBrowse[5] + " ns");
+		}
+		
+		System.out.println("pipelinedWrite : " + names.length + " files / write time sequential = " + (sequentialBrowse[5] / 1000000) + " ms / pipelined = " + (pipelinedBrowse[5] / 1000000) + " ms OK");
+	}
+	
+	//edge zarr chunks (shape not a multiple of the shard shape) : the shards are padded from the valid part instead of completed with the fill value,
+	//the padded samples of the DTCOP chunks holding valid samples decode close to the mirrored valid samples (default Shard.Padding.SYMMETRIC)
+	public static void edgeChunks(int[] shape, int[] shardShape, double maxError) throws Exception {
+		
+		Array expected = syntheticArray(shape, 44);
+		short[] data = (short[])expected.getStorage();
+		File var = write(expected, shardShape, 1, new DTCOPCompressor(null, maxError, 4), new long[6]);
+		int chunkLen = 32;		//DTCOPCompressor chunk shape
+		
+		List<Path> files;
+		try(Stream<Path> stream = Files.walk(var.toPath())) {
+			files = stream.filter(Files::isRegularFile).filter((path) -> path.getFileName().toString().startsWith(".") == false).collect(Collectors.toList());
+		}
+		
+		int padded = 0;
+		for(Path path : files) {
+			
+			//zarr chunk index from the key ("k.j.i" or "k/j/i")
+			String[] key = var.toPath().relativize(path).toString().split("[./\\\\]");
+			int[] origin = new int[shape.length];
+			int[] len = new int[shape.length];
+			int[] ext = new int[shape.length];
+			for(int d = 0 ; d < shape.length ; d++) {
+				origin[d] = Integer.parseInt(key[d]) * shardShape[d];
+				len[d] = Math.min(shardShape[d], shape[d] - origin[d]);
+				ext[d] = Math.min(shardShape[d], (len[d] + chunkLen - 1) / chunkLen * chunkLen);
+			}
+			
+			float[] decoded;
+			try(ShardReader reader = new ShardReader(path.toFile())) {
+				decoded = (float[])reader.decodeAll(ForkJoinPool.commonPool()).getStorage();
+			}
+			
+			//valid part and its padding up to the DTCOP chunk grid
+			int[] pos = new int[3];
+			int[] src = new int[3];
+			for(pos[0] = 0 ; pos[0] < ext[0] ; pos[0]++) {
+				for(pos[1] = 0 ; pos[1] < ext[1] ; pos[1]++) {
+					for(pos[2] = 0 ; pos[2] < ext[2] ; pos[2]++) {
+						
+						boolean pad = false;
+						for(int d = 0 ; d < 3 ; d++) {
+							int p = pos[d] % (2 * len[d]);
+							src[d] = origin[d] + (p < len[d] ? p : 2 * len[d] - 1 - p);
+							pad |= pos[d] >= len[d];
+						}
+						
+						float value = decoded[(pos[0] * shardShape[1] + pos[1]) * shardShape[2] + pos[2]];
+						short sample = data[(src[0] * shape[1] + src[1]) * shape[2] + src[2]];
+						if(Math.abs(value - sample) > maxError) {
+							throw new IllegalStateException("edgeChunks : chunk " + Arrays.toString(key) + " at " + Arrays.toString(pos) + " : " + value + " instead of " + sample + (pad ? " (padded)" : ""));
+						}
+						if(pad) {
+							padded++;
+						}
+					}
+				}
+			}
+		}
+		
+		if(padded == 0) {
+			throw new IllegalStateException("edgeChunks : no padded sample for shape " + Arrays.toString(shape));
+		}
+		
+		System.out.println("edgeChunks : " + files.size() + " zarr chunks / " + padded + " padded samples OK");
+	}
+	
+	public static void main(String[] args) throws Exception {
+		roundTrip(new int[] {70,100,90}, new int[] {64,64,64}, 100.0);
+		pipelinedWrite(new int[] {70,100,90}, new int[] {64,64,64}, 100.0);
+		edgeChunks(new int[] {70,100,90}, new int[] {64,64,64}, 100.0);
+	}
+	
+}
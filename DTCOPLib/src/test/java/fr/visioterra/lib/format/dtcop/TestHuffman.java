@@ -0,0 +1,308 @@
+package fr.visioterra.lib.format.dtcop;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import fr.visioterra.lib.format.dtcop.chunk.ChunkWriter;
+import fr.visioterra.lib.format.dtcop.huffman.Histogram;
+import fr.visioterra.lib.format.dtcop.huffman.Huffman;
+import fr.visioterra.lib.format.dtcop.huffman.Node;
+import fr.visioterra.lib.io.bit.BitReader;
+import fr.visioterra.lib.io.bit.BitWriter;
+import fr.visioterra.lib.io.stream.ByteArrayInputStream;
+import fr.visioterra.lib.io.stream.ByteArrayOutputStream;
+
+public class TestHuffman {
+	
+	private static byte[] writeTable(Huffman huffman) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try(BitWriter bw = new BitWriter(baos,64)) {
+			huffman.writeTable(bw,16);
+		}
+		return baos.toByteArray();
+	}
+	
+	private static Huffman readTable(byte[] table, int symbolCount) throws Exception {
+		try(BitReader br = new BitReader(new ByteArrayInputStream(table))) {
+			return new Huffman().readTable(br, symbolCount, 16);
+		}
+	}
+	
+	private static byte[] encode(Huffman huffman, int[] symbols) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try(BitWriter bw = new BitWriter(baos,64)) {
+			for(int s : symbols) {
+				huffman.writeCode(bw, s);
+			}
+		}
+		return baos.toByteArray();
+	}
+	
+	private static void decode(Huffman huffman, byte[] data, int[] symbols, boolean table, String message) throws Exception {
+		Huffman.tableDecoder = table;
+		try(BitReader br = new BitReader(new ByteArrayInputStream(data))) {
+			for(int i = 0 ; i < symbols.length ; i++) {
+				int s = huffman.readSymbol(br);
+				if(s != symbols[i]) {
+					throw new IllegalStateException(message + " : symbol " + i + " decoded as " + s + " instead of " + symbols[i]);
+				}
+			}
+		}
+		Huffman.tableDecoder = true;
+	}
+	
+	//round trip (table + symbols) with both the tree and the table decoders
+	private static void roundTrip(Huffman huffman, int[] symbols, String message) throws Exception {
+		
+		byte[] table = writeTable(huffman);
+		byte[] data = encode(huffman, symbols);
+		
+		Huffman read = readTable(table, huffman.getSymbolCount());
+		
+		if(read.getSymbolCount() != huffman.getSymbolCount()) {
+			throw new IllegalStateException(message + " : invalid symbol count");
+		}
+		
+		decode(read, data, symbols, false, message + " (tree)");
+		decode(read, data, symbols, true,  message + " (table)");
+		
+		int maxLen = 0;
+		for(int s : symbols) {
+			maxLen = Math.max(maxLen, huffman.getSymbolLength(s));
+		}
+		
+		System.out.println(message + " : " + symbols.length + " symbols / " + huffman.getSymbolCount() + " codes / max length " + maxLen + " OK");
+	}
+	
+	//Laplacian like distribution, as quantized AC coefficients
+	public static void laplacian(int count, double scale) throws Exception {
+		
+		Random random = new Random(count);
+		int[] symbols = new int[count];
+		Histogram histogram = new Histogram(256*256,Short.MAX_VALUE);
+		
+		for(int i = 0 ; i < symbols.length ; i++) {
+			double u = random.nextDouble() - 0.5;
+			int s = (int)Math.round(-scale * Math.signum(u) * Math.log(1.0 - 2.0 * Math.abs(u)));
+			symbols[i] = Math.max(-32767, Math.min(32767, s));
+			histogram.update(symbols[i]);
+		}
+		
+		roundTrip(histogram.getHuffman(), symbols, "laplacian " + scale);
+	}
+	
+	//Fibonacci weights => codes longer than the first lookup level
+	public static void fibonacci(int symbolCount) throws Exception {
+		
+		Histogram histogram = new Histogram(256*256,Short.MAX_VALUE);
+		int w1 = 1;
+		int w2 = 1;
+		for(int s = 0 ; s < symbolCount ; s++) {
+			histogram.update(s - symbolCount / 2, w1);
+			int w = w1 + w2;
+			w1 = w2;
+			w2 = w;
+		}
+		
+		int[] symbols = new int[symbolCount * 4];
+		Random random = new Random(symbolCount);
+		for(int i = 0 ; i < symbols.length ; i++) {
+			symbols[i] = random.nextInt(symbolCount) - symbolCount / 2;
+		}
+		
+		roundTrip(histogram.getHuffman(), symbols, "fibonacci " + symbolCount);
+	}
+	
+	//non canonical tree as written by previous versions
+	public static void nonCanonical() throws Exception {
+		
+		//((3,(-1,(7,(2,5)))),(0,1))
+		Node tree = new Node(Integer.MAX_VALUE, -1,
+				new Node(Integer.MAX_VALUE, -1,
+						new Node(3,-1),
+						new Node(Integer.MAX_VALUE, -1,
+								new Node(-1,-1),
+								new Node(Integer.MAX_VALUE, -1,
+										new Node(7,-1),
+										new Node(Integer.MAX_VALUE, -1, new Node(2,-1), new Node(5,-1))))),
+				new Node(Integer.MAX_VALUE, -1, new Node(0,-1), new Node(1,-1)));
+		
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try(BitWriter bw = new BitWriter(baos,64)) {
+			tree.writeNode(bw,16);
+		}
+		
+		Huffman huffman = readTable(baos.toByteArray(), 7);
+		
+		int[] alphabet = new int[] {3,-1,7,2,5,0,1};
+		int[] symbols = new int[1000];
+		Random random = new Random(0);
+		for(int i = 0 ; i < symbols.length ; i++) {
+			symbols[i] = alphabet[random.nextInt(alphabet.length)];
+		}
+		
+		byte[] data = encode(huffman, symbols);
+		decode(huffman, data, symbols, false, "non canonical (tree)");
+		decode(huffman, data, symbols, true,  "non canonical (table)");
+		
+		System.out.println("non canonical : " + symbols.length + " symbols OK");
+	}
+	
+	//per-thread histograms merged at the end must give the same histogram and Huffman table as a single one
+	public static void histogramMerge(int count, int threadNumber) throws Exception {
+		
+		Random random = new Random(count);
+		int[] symbols = new int[count];
+		for(int i = 0 ; i < symbols.length ; i++) {
+			double u = random.nextDouble() - 0.5;
+			int s = (int)Math.round(-20.0 * Math.signum(u) * Math.log(1.0 - 2.0 * Math.abs(u)));
+			symbols[i] = (i % 97 == 0) ? ChunkWriter.rleCode : Math.max(-32767, Math.min(32767, s));
+		}
+		
+		Histogram sequential = new Histogram(256*256,Short.MAX_VALUE);
+		for(int s : symbols) {
+			sequential.update(s);
+		}
+		
+		//thread confined histograms (no lock) merged at the end, and a shared histogram updated by every thread
+		Histogram[] histograms = new Histogram[threadNumber];
+		Histogram shared = new Histogram(256*256,Short.MAX_VALUE);
+		Thread[] threads = new Thread[threadNumber];
+		for(int t = 0 ; t < threadNumber ; t++) {
+			Histogram histogram = new Histogram(256*256,Short.MAX_VALUE,false);
+			int first = t;
+			histograms[t] = histogram;
+			threads[t] = new Thread(() -> {
+				for(int i = first ; i < symbols.length ; i += threadNumber) {
+					histogram.update(symbols[i]);
+					shared.update(symbols[i]);
+				}
+			});
+			threads[t].start();
+		}
+		
+		Histogram merged = new Histogram(256*256,Short.MAX_VALUE,false);
+		for(int t = 0 ; t < threadNumber ; t++) {
+			threads[t].join();
+			merged.merge(histograms[t]);
+		}
+		
+		if(merged.getTotalCount() != sequential.getTotalCount() || merged.getSymbolCount() != sequential.getSymbolCount()) {
+			throw new IllegalStateException("histogramMerge : " + merged + " instead of " + sequential);
+		}
+		
+		if(shared.getTotalCount() != sequential.getTotalCount() || shared.getSymbolCount() != sequential.getSymbolCount()) {
+			throw new IllegalStateException("histogramMerge : shared " + shared + " instead of " + sequential);
+		}
+		
+		Huffman h1 = sequential.getHuffman();
+		Huffman h2 = merged.getHuffman();
+		if(Arrays.equals(writeTable(h1), writeTable(h2)) == false) {
+			throw new IllegalStateException("histogramMerge : Huffman tables differ");
+		}
+		for(int s : symbols) {
+			if(h1.getCodeAsString(s).equals(h2.getCodeAsString(s)) == false) {
+				throw new IllegalStateException("histogramMerge : code of symbol " + s + " differs");
+			}
+		}
+		
+		System.out.println("histogramMerge : " + threadNumber + " threads / " + sequential.getSymbolCount() + " symbols OK");
+	}
+	
+	//code arrays must produce the same bytes as the symbols map
+	public static void tableEncoder(int count, double scale) throws Exception {
+		
+		Random random = new Random(count + 1);
+		int[] symbols = new int[count];
+		Histogram histogram = new Histogram(256*256,Short.MAX_VALUE);
+		
+		for(int i = 0 ; i < symbols.length ; i++) {
+			double u = random.nextDouble() - 0.5;
+			int s = (int)Math.round(-scale * Math.signum(u) * Math.log(1.0 - 2.0 * Math.abs(u)));
+			symbols[i] = (i % 101 == 0) ? ChunkWriter.rleCode : Math.max(-32767, Math.min(32767, s));
+			histogram.update(symbols[i]);
+		}
+		
+		Huffman huffman = histogram.getHuffman();
+		
+		Huffman.tableEncoder = false;
+		ByteArrayOutputStream b1 = new ByteArrayOutputStream();
+		try(BitWriter bw = new BitWriter(b1,64)) {
+			for(int s : symbols) {
+				huffman.writeCode(bw, s);
+			}
+			huffman.writeCode(bw, 0, 5);
+		}
+		
+		Huffman.tableEncoder = true;
+		ByteArrayOutputStream b2 = new ByteArrayOutputStream();
+		try(BitWriter bw = new BitWriter(b2,64)) {
+			for(int s : symbols) {
+				huffman.writeCode(bw, s);
+			}
+			huffman.writeCode(bw, 0, 5);
+		}
+		
+		if(Arrays.equals(b1.toByteArray(), b2.toByteArray()) == false) {
+			throw new IllegalStateException("tableEncoder " + scale + " : output differs");
+		}
+		
+		System.out.println("tableEncoder " + scale + " : " + count + " symbols / " + b1.toByteArray().length + " bytes OK");
+	}
+	
+	//Fibonacci weights => unlimited Huffman depth of symbolCount-1, must be limited to maxLen with a complete prefix code
+	public static void lengthLimit(int symbolCount, int maxLen) throws Exception {
+		
+		Histogram histogram = new Histogram(256*256,Short.MAX_VALUE);
+		int w1 = 1;
+		int w2 = 1;
+		for(int s = 0 ; s < symbolCount ; s++) {
+			histogram.update(s - symbolCount / 2, w1);
+			int w = w1 + w2;
+			w1 = w2;
+			w2 = w;
+		}
+		
+		Huffman huffman = histogram.getHuffman(maxLen);
+		
+		//max code length and Kraft sum (complete code)
+		double kraft = 0.0;
+		int longest = 0;
+		for(int s = 0 ; s < symbolCount ; s++) {
+			int len = huffman.getSymbolLength(s - symbolCount / 2);
+			longest = Math.max(longest, len);
+			kraft += Math.pow(2.0, -len);
+		}
+		
+		if(longest > maxLen) {
+			throw new IllegalStateException("lengthLimit " + symbolCount + " : max length " + longest + " > " + maxLen);
+		}
+		if(Math.abs(kraft - 1.0) > 1e-12) {
+			throw new IllegalStateException("lengthLimit " + symbolCount + " : Kraft sum " + kraft + " != 1");
+		}
+		
+		int[] symbols = new int[symbolCount * 4];
+		Random random = new Random(symbolCount);
+		for(int i = 0 ; i < symbols.length ; i++) {
+			symbols[i] = random.nextInt(symbolCount) - symbolCount / 2;
+		}
+		
+		roundTrip(huffman, symbols, "lengthLimit " + symbolCount + " / " + maxLen);
+	}
+	
+	public static void main(String[] args) throws Exception {
+		laplacian(100000, 0.5);
+		laplacian(100000, 20.0);
+		laplacian(100000, 2000.0);
+		fibonacci(20);
+		fibonacci(30);
+		lengthLimit(40, 24);
+		lengthLimit(40, 12);
+		lengthLimit(30, 6);
+		nonCanonical();
+		histogramMerge(200000, 8);
+		tableEncoder(100000, 0.5);
+		tableEncoder(100000, 200.0);
+	}
+	
+}
@@ -0,0 +1,1012 @@
+package fr.visioterra.lib.format.dtcop;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import fr.visioterra.lib.format.dtcop.chunk.Cell;
+import fr.visioterra.lib.format.dtcop.chunk.Chunk;
+import fr.visioterra.lib.format.dtcop.chunk.ChunkWriter;
+import fr.visioterra.lib.format.dtcop.huffman.Histogram;
+import fr.visioterra.lib.format.dtcop.huffman.Huffman;
+import fr.visioterra.lib.format.dtcop.quantization.QuantChunk;
+import fr.visioterra.lib.format.dtcop.shard.Shard;
+import fr.visioterra.lib.format.dtcop.shard.ShardReader;
+import fr.visioterra.lib.format.dtcop.shard.ShardWriter;
+import fr.visioterra.lib.io.bit.ByteBufferBitReader;
+import fr.visioterra.lib.io.stream.ByteArrayOutputStream;
+import fr.visioterra.lib.tools.Benchmark;
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+
+public class TestShardReader {
+	
+	private static List<QuantChunk> quantChunks(int[] chunkShape) {
+		float chunkScale = (float)Math.pow(Math.sqrt(2),15);
+		ArrayList<QuantChunk> qChunks = new ArrayList<>();
+		qChunks.add(new QuantChunk(chunkShape, new float[] {chunkScale * 2.0f, 20.0f, 10.0f}, qChunks.size()));
+		qChunks.add(new QuantChunk(chunkShape, new float[] {chunkScale * 1.5f, 10.0f       }, qChunks.size()));
+		qChunks.add(new QuantChunk(chunkShape, new float[] {chunkScale * 1.0f, 2.0f        }, qChunks.size()));
+		qChunks.add(new QuantChunk(chunkShape, new float[] {chunkScale * 1.0f              }, qChunks.size()));
+		qChunks.add(new QuantChunk(chunkShape, new float[] {chunkScale / 2.0f              }, qChunks.size()));
+		return qChunks;
+	}
+	
+	//smooth field + noise, shape not a multiple of the chunk shape
+	public static Array syntheticArray(int[] shape, long seed) {
+		Random random = new Random(seed);
+		Array array = Array.factory(DataType.FLOAT, shape);
+		float[] data = (float[])array.getStorage();
+		int idx = 0;
+		for(int k = 0 ; k < shape[0] ; k++) {
+			for(int j = 0 ; j < shape[1] ; j++) {
+				for(int i = 0 ; i < shape[2] ; i++) {
+					double v = 280.0 + 10.0 * Math.sin(k * 0.1) + 5.0 * Math.cos(j * 0.07 + i * 0.05) + random.nextGaussian() * 0.2;
+					data[idx++] = (float)v;
+				}
+			}
+		}
+		return array;
+	}
+	
+	public static File syntheticShard(int[] shape, int[] chunkShape, double maxError) throws Exception {
+		File file = File.createTempFile("dtcop", ".shard");
+		file.deleteOnExit();
+		Shard shard = new Shard(syntheticArray(shape, 1234), chunkShape);
+		try(OutputStream os = new FileOutputStream(file)) {
+			ShardWriter.write(os, shard, quantChunks(chunkShape), maxError, 4);
+		}
+		return file;
+	}
+	
+	private static void assertIdentical(Chunk c1, Chunk c2, String message) {
+		float[] d1 = (float[])c1.getArray().getStorage();
+		float[] d2 = (float[])c2.getArray().getStorage();
+		if(d1.length != d2.length) {
+			throw new IllegalStateException(message + " : size mismatch");
+		}
+		for(int i = 0 ; i < d1.length ; i++) {
+			if(Float.floatToIntBits(d1[i]) != Float.floatToIntBits(d2[i])) {
+				throw new IllegalStateException(message + " : mismatch at " + i + " (" + d1[i] + " != " + d2[i] + ")");
+			}
+		}
+	}
+	
+	//decode every chunk with the tree and the table Huffman decoders
+	public static void huffmanDecoders(File file) throws Exception {
+		
+		int count = 0;
+		try(ShardReader reader = new ShardReader(file)) {
+			int[] numChunk = reader.getNumChunk();
+			for(int k = 0 ; k < numChunk[0] ; k++) {
+				for(int j = 0 ; j < numChunk[1] ; j++) {
+					for(int i = 0 ; i < numChunk[2] ; i++) {
+						int[] idx = new int[] {k,j,i};
+						Huffman.tableDecoder = false;
+						Chunk tree = reader.getChunk(idx);
+						Huffman.tableDecoder = true;
+						Chunk table = reader.getChunk(idx);
+						assertIdentical(tree, table, "chunk " + k + "/" + j + "/" + i);
+						count++;
+					}
+				}
+			}
+		}
+		
+		System.out.println("huffmanDecoders : " + count + " chunks OK");
+	}
+	
+	private static List<int[]> chunkIndexes(ShardReader reader) {
+		ArrayList<int[]> list = new ArrayList<>();
+		int[] numChunk = reader.getNumChunk();
+		for(int k = 0 ; k < numChunk[0] ; k++) {
+			for(int j = 0 ; j < numChunk[1] ; j++) {
+				for(int i = 0 ; i < numChunk[2] ; i++) {
+					list.add(new int[] {k,j,i});
+				}
+			}
+		}
+		return list;
+	}
+	
+	//encoded chunks of a shard file, in chunk index order, parsed without ShardReader
+	private static List<ByteBuffer> chunkBuffers(File file) throws Exception {
+		
+		ByteBuffer bb = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		bb.position(ShardWriter.magicNumber.length + 1);
+		
+		int[] sizes = null;
+		int dataPos = -1;
+		while(bb.hasRemaining()) {
+			byte blockId = bb.get();
+			int blockSize = bb.getInt();
+			int next = bb.position() + blockSize;
+			if(blockId == ShardWriter.idBlockChunksTable) {
+				sizes = new int[bb.getShort()];
+				for(int i = 0 ; i < sizes.length ; i++) {
+					sizes[i] = bb.getInt();
+				}
+			}
+			else if(blockId == ShardWriter.idBlockChunks) {
+				dataPos = bb.position();
+			}
+			bb.position(next);
+		}
+		
+		ArrayList<ByteBuffer> list = new ArrayList<>();
+		for(int size : sizes) {
+			bb.limit(dataPos + size).position(dataPos);
+			list.add(bb.slice());
+			bb.limit(bb.capacity());
+			dataPos += size;
+		}
+		return list;
+	}
+	
+	//reference decoding of one chunk : coefficients in zigzag order, dequantization, full iDCT then scale / offset (and rounding)
+	private static Chunk referenceChunk(ByteBuffer encoded, Huffman huffman, boolean runLength, double scaleFactor, double addOffset, boolean round, DataType roundDataType) throws Exception {
+		
+		ByteBuffer bb = encoded.duplicate();
+		
+		int[] shape = new int[bb.get()];
+		for(int d = 0 ; d < shape.length ; d++) {
+			shape[d] = bb.get() & 0xFF;
+		}
+		
+		float[] polynom = new float[bb.get() & 0xFF];
+		for(int d = 0 ; d < polynom.length ; d++) {
+			polynom[d] = Float.intBitsToFloat(bb.getInt());
+		}
+		
+		Chunk chunk;
+		if(polynom.length == 0) {
+			Array array = Array.factory(DataType.FLOAT, shape);
+			Arrays.fill((float[])array.getStorage(), bb.getFloat());
+			chunk = new Chunk(array);
+		}
+		else {
+			int size = shape[0] * shape[1] * shape[2];
+			int[] zz = new int[size];
+			zz[0] = bb.getInt();
+			
+			ByteBufferBitReader br = new ByteBufferBitReader(bb);
+			int idx = 1;
+			int end = runLength ? size : size - 1;
+			while(idx < end) {
+				int value = huffman.readSymbol(br);
+				if(value == ChunkWriter.rleCode) {
+					idx += (short)br.readBits(16);
+				}
+				else if(value == ChunkWriter.eobCode) {
+					break;
+				}
+				else if(value > ChunkWriter.eobCode) {
+					idx += value - ChunkWriter.eobCode;
+				}
+				else {
+					zz[idx++] = value;
+				}
+			}
+			br.close();
+			
+			chunk = new Chunk(DataType.FLOAT, shape, zz, Cell.permutation(shape, true));
+			chunk.scale(new QuantChunk(shape, polynom), true, false);
+			chunk.idct();
+		}
+		
+		boolean applyScaleOffset = Double.isNaN(scaleFactor) == false && Double.isNaN(addOffset) == false;
+		if(round) {
+			return Chunk.scaleRound(chunk, roundDataType, applyScaleOffset ? scaleFactor : 1.0, applyScaleOffset ? addOffset : 0.0);
+		}
+		if(applyScaleOffset) {
+			chunk.scale(scaleFactor, addOffset);
+		}
+		return chunk;
+	}
+	
+	//version 0x01 and later : AC zero runs as run-length symbols
+	private static boolean runLength(File file) throws Exception {
+		return Files.readAllBytes(file.toPath())[ShardWriter.magicNumber.length] != ShardWriter.idVersion;
+	}
+	
+	//sparse / fast iDCT of the decoders against the full iDCT of the reference : not bit exact
+	private static void assertClose(float expected, float value, String message) {
+		if(Math.abs(expected - value) > 1e-5 * Math.max(1.0, Math.abs(expected))) {
+			throw new IllegalStateException(message + " (" + value + " != " + expected + ")");
+		}
+	}
+	
+	private static void assertClose(Chunk expected, Chunk chunk, String message) {
+		float[] d1 = (float[])expected.getArray().getStorage();
+		float[] d2 = (float[])chunk.getArray().getStorage();
+		if(d1.length != d2.length) {
+			throw new IllegalStateException(message + " : size mismatch");
+		}
+		for(int i = 0 ; i < d1.length ; i++) {
+			assertClose(d1[i], d2[i], message + " : mismatch at " + i);
+		}
+	}
+	
+	//decode all chunks of one shard from many threads and compare with single thread decoding
+	public static void concurrentReads(File file, boolean mapped, int threadNumber, int loop) throws Exception {
+		
+		try(ShardReader reader = new ShardReader(file, mapped)) {
+			
+			List<int[]> indexes = chunkIndexes(reader);
+			
+			ArrayList<Chunk> expected = new ArrayList<>();
+			for(int[] idx : indexes) {
+				expected.add(reader.getChunk(idx));
+			}
+			
+			ExecutorService executor = Executors.newFixedThreadPool(threadNumber);
+			try {
+				
+				ArrayList<Future<Integer>> futures = new ArrayList<>();
+				for(int t = 0 ; t < threadNumber ; t++) {
+					
+					final long seed = t;
+					futures.add(executor.submit(() -> {
+						
+						ArrayList<Integer> order = new ArrayList<>();
+						for(int i = 0 ; i < indexes.size() ; i++) {
+							order.add(i);
+						}
+						
+						int count = 0;
+						for(int l = 0 ; l < loop ; l++) {
+							Collections.shuffle(order, new Random(seed * loop + l));
+							for(int i : order) {
+								Chunk chunk = reader.getChunk(indexes.get(i));
+								assertIdentical(expected.get(i), chunk, "chunk " + i);
+								count++;
+							}
+						}
+						return count;
+					}));
+				}
+				
+				int count = 0;
+				for(Future<Integer> future : futures) {
+					count += future.get();
+				}
+				
+				System.out.println("concurrentReads (mapped=" + mapped + ") : " + threadNumber + " threads / " + count + " chunks OK");
+				
+			} finally {
+				executor.shutdown();
+			}
+		}
+		
+	}
+	
+	//compare getChunks / decodeAll with sequential getChunk and with the reference decoding
+	public static void decodeAll(File file, int threadNumber) throws Exception {
+		
+		List<ByteBuffer> encoded = chunkBuffers(file);
+		boolean runLength = runLength(file);
+		
+		try(ShardReader reader = new ShardReader(file)) {
+			
+			List<int[]> indexes = chunkIndexes(reader);
+			int[] shape = reader.getShape();
+			int[] chunkShape = reader.getChunkShape();
+			
+			ExecutorService executor = Executors.newFixedThreadPool(threadNumber);
+			try {
+				
+				Chunk[] chunks = reader.getChunks(indexes.toArray(new int[0][]), executor);
+				Array array = reader.decodeAll(executor);
+				float[] data = (float[])array.getStorage();
+				
+				for(int i = 0 ; i < indexes.size() ; i++) {
+					
+					int[] idx = indexes.get(i);
+					Chunk expected = referenceChunk(encoded.get(i), reader.getHuffman(), runLength, Double.NaN, Double.NaN, false, null);
+					assertClose(expected, reader.getChunk(idx), "getChunk " + i);
+					assertIdentical(reader.getChunk(idx), chunks[i], "getChunks " + i);
+					
+					//valid part of the chunk in the shard array (3D)
+					float[] e = (float[])expected.getArray().getStorage();
+					for(int z = 0 ; z < chunkShape[0] && idx[0] * chunkShape[0] + z < shape[0] ; z++) {
+						for(int y = 0 ; y < chunkShape[1] && idx[1] * chunkShape[1] + y < shape[1] ; y++) {
+							for(int x = 0 ; x < chunkShape[2] && idx[2] * chunkShape[2] + x < shape[2] ; x++) {
+								int src = (z * chunkShape[1] + y) * chunkShape[2] + x;
+								int dst = ((idx[0] * chunkShape[0] + z) * shape[1] + idx[1] * chunkShape[1] + y) * shape[2] + idx[2] * chunkShape[2] + x;
+								assertClose(e[src], data[dst], "decodeAll : mismatch at " + dst);
+							}
+						}
+					}
+				}
+				
+				System.out.println("decodeAll : " + threadNumber + " threads / " + indexes.size() + " chunks OK");
+				
+			} finally {
+				executor.shutdown();
+			}
+		}
+		
+	}
+	
+	//coalesced batch reads of a shuffled subset of chunks, with several gap thresholds
+	public static void batchReads(File file, boolean mapped) throws Exception {
+		
+		List<ByteBuffer> encoded = chunkBuffers(file);
+		boolean runLength = runLength(file);
+		
+		try(ShardReader reader = new ShardReader(file, mapped)) {
+			
+			List<int[]> indexes = chunkIndexes(reader);
+			int[] numChunk = reader.getNumChunk();
+			Collections.shuffle(indexes, new Random(0));
+			List<int[]> subset = indexes.subList(0, indexes.size() * 2 / 3);
+			
+			for(int gap : new int[] {0, 100, Integer.MAX_VALUE}) {
+				
+				reader.setMaxReadGap(gap);
+				Chunk[] chunks = reader.getChunks(subset.toArray(new int[0][]));
+				
+				for(int i = 0 ; i < chunks.length ; i++) {
+					int[] idx = subset.get(i);
+					int c = (idx[0] * numChunk[1] + idx[1]) * numChunk[2] + idx[2];
+					Chunk expected = referenceChunk(encoded.get(c), reader.getHuffman(), runLength, Double.NaN, Double.NaN, false, null);
+					assertClose(expected, chunks[i], "batchReads (gap=" + gap + ") " + i);
+					assertIdentical(reader.getChunk(idx), chunks[i], "batchReads (gap=" + gap + ") " + i);
+				}
+			}
+			
+			System.out.println("batchReads (mapped=" + mapped + ") : " + subset.size() + " chunks OK");
+			
+		}
+		
+	}
+	
+	//compare decodeInto (float[] and short[]) with the reference decoding, in a larger buffer with reversed strides
+	public static void decodeInto(File file) throws Exception {
+		
+		List<ByteBuffer> encoded = chunkBuffers(file);
+		boolean runLength = runLength(file);
+		
+		try(ShardReader reader = new ShardReader(file)) {
+			
+			int[] shape = reader.getShape();
+			int[] chunkShape = reader.getChunkShape();
+			
+			//buffer of shape (cs2+1) x (cs1+1) x (cs0+1) holding the transposed chunk at offset (1,1,1)
+			int[] strides = new int[] {1, chunkShape[0] + 1, (chunkShape[0] + 1) * (chunkShape[1] + 1)};
+			int size = strides[2] * (chunkShape[2] + 1);
+			int offset = strides[0] + strides[1] + strides[2];
+			
+			double[][] scaleOffsets = new double[][] {{Double.NaN, Double.NaN}, {0.5, -100.0}};
+			
+			List<int[]> indexes = chunkIndexes(reader);
+			for(int c = 0 ; c < indexes.size() ; c++) {
+				int[] idx = indexes.get(c);
+				for(double[] so : scaleOffsets) {
+					
+					float[] fDst = new float[size];
+					short[] sDst = new short[size];
+					reader.decodeInto(idx, fDst, offset, strides, so[0], so[1]);
+					reader.decodeInto(idx, sDst, offset, strides, so[0], so[1]);
+					
+					float[] fExp = (float[])referenceChunk(encoded.get(c), reader.getHuffman(), runLength, so[0], so[1], false, null).getArray().getStorage();
+					short[] sExp = (short[])referenceChunk(encoded.get(c), reader.getHuffman(), runLength, so[0], so[1], true, DataType.SHORT).getArray().getStorage();
+					
+					for(int z = 0 ; z < chunkShape[0] ; z++) {
+						for(int y = 0 ; y < chunkShape[1] ; y++) {
+							for(int x = 0 ; x < chunkShape[2] ; x++) {
+								
+								int src = (z * chunkShape[1] + y) * chunkShape[2] + x;
+								int dst = offset + z * strides[0] + y * strides[1] + x * strides[2];
+								boolean valid = idx[0] * chunkShape[0] + z < shape[0] && idx[1] * chunkShape[1] + y < shape[1] && idx[2] * chunkShape[2] + x < shape[2];
+								
+								float fValue = valid ? fExp[src] : 0.0f;
+								short sValue = valid ? sExp[src] : 0;
+								assertClose(fValue, fDst[dst], "decodeInto : float mismatch in chunk " + Arrays.toString(idx) + " at " + src);
+								//rounding of values close to .5 may differ by one
+								if(Math.abs(sDst[dst] - sValue) > 1) {
+									throw new IllegalStateException("decodeInto : short mismatch in chunk " + Arrays.toString(idx) + " at " + src + " (" + sDst[dst] + " != " + sValue + ")");
+								}
+							}
+						}
+					}
+				}
+			}
+			
+			System.out.println("decodeInto : " + indexes.size() + " chunks OK");
+			
+		}
+		
+	}
+	
+	//the same shard written with each version (repeated zeros / rleCode and run-length symbols) must decode identically
+	//single fine QuantChunk and shape multiple of the chunk shape : same coefficients, last (dropped by version 0x00) one is zero
+	public static void shardVersions(int[] shape, int[] chunkShape) throws Exception {
+		
+		Shard shard = new Shard(syntheticArray(shape, 4321), chunkShape);
+		List<QuantChunk> qChunks = Collections.singletonList(new QuantChunk(chunkShape, new float[] {0.3f, 0.02f}, 0));
+		
+		byte[] versions = new byte[] {ShardWriter.idVersion, ShardWriter.idVersionRunLength};
+		ArrayList<byte[]> shards = new ArrayList<>();
+		for(byte version : versions) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			ShardWriter.write(baos, shard, qChunks, 1.0, 4, new ShardWriter.Options(version, Huffman.maxCodeLength));
+			byte[] bytes = baos.toByteArray();
+			if(bytes[5] != version) {
+				throw new IllegalStateException("shardVersions : version byte " + bytes[5] + " instead of " + version);
+			}
+			shards.add(bytes);
+		}
+		
+		//both versions written at the same time on a shared executor : same bytes as written one after the other
+		ExecutorService executor = new ForkJoinPool(4);
+		ExecutorService callers = Executors.newFixedThreadPool(versions.length);
+		try {
+			ArrayList<Future<byte[]>> futures = new ArrayList<>();
+			for(byte version : versions) {
+				futures.add(callers.submit(() -> {
+					ByteArrayOutputStream baos = new ByteArrayOutputStream();
+					ShardWriter.write(baos, shard, qChunks, 1.0, executor, new ShardWriter.Options(version, Huffman.maxCodeLength));
+					return baos.toByteArray();
+				}));
+			}
+			for(int v = 0 ; v < versions.length ; v++) {
+				if(Arrays.equals(shards.get(v), futures.get(v).get()) == false) {
+					throw new IllegalStateException("shardVersions : concurrent write of version " + versions[v] + " differs");
+				}
+			}
+		} finally {
+			callers.shutdown();
+			executor.shutdown();
+		}
+		
+		int count = 0;
+		int size = chunkShape[0] * chunkShape[1] * chunkShape[2];
+		int[] strides = new int[] {chunkShape[1] * chunkShape[2], chunkShape[2], 1};
+		
+		try(ShardReader r0 = new ShardReader(ByteBuffer.wrap(shards.get(0)));
+			ShardReader r1 = new ShardReader(ByteBuffer.wrap(shards.get(1)))) {
+			
+			for(int[] idx : chunkIndexes(r0)) {
+				
+				String message = "shardVersions : chunk " + Arrays.toString(idx);
+				assertIdentical(r0.getChunk(idx), r1.getChunk(idx), message);
+				
+				float[] d0 = new float[size];
+				float[] d1 = new float[size];
+				r0.decodeInto(idx, d0, 0, strides);
+				r1.decodeInto(idx, d1, 0, strides);
+				if(Arrays.equals(d0, d1) == false) {
+					throw new IllegalStateException(message + " : decodeInto mismatch");
+				}
+				
+				count++;
+			}
+		}
+		
+		System.out.println("shardVersions : " + count + " chunks / " + shards.get(0).length + " => " + shards.get(1).length + " bytes OK");
+	}
+	
+	//used heap after a full GC
+	private static long liveHeap() {
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+	
+	//channel sampling the live heap every few writes
+	private static class HeapSamplingChannel implements SeekableByteChannel {
+		
+		private final SeekableByteChannel channel;
+		private long writeCount = 0;
+		private long peak = 0;
+		
+		HeapSamplingChannel(SeekableByteChannel channel) {
+			this.channel = channel;
+		}
+		
+		@Override public int write(ByteBuffer src) throws IOException {
+			if(this.writeCount++ % 8 == 0) {
+				this.peak = Math.max(this.peak, liveHeap());
+			}
+			return this.channel.write(src);
+		}
+		
+		@Override public int read(ByteBuffer dst) throws IOException { return this.channel.read(dst); }
+		@Override public long position() throws IOException { return this.channel.position(); }
+		@Override public SeekableByteChannel position(long newPosition) throws IOException { this.channel.position(newPosition); return this; }
+		@Override public long size() throws IOException { return this.channel.size(); }
+		@Override public SeekableByteChannel truncate(long size) throws IOException { this.channel.truncate(size); return this; }
+		@Override public boolean isOpen() { return this.channel.isOpen(); }
+		@Override public void close() throws IOException { this.channel.close(); }
+	}
+	
+	private static byte[] streamShard(Shard shard, List<QuantChunk> qChunks, Huffman huffman, ExecutorService executor, long[] peak) throws Exception {
+		File file = File.createTempFile("dtcop", ".shard");
+		file.deleteOnExit();
+		try(HeapSamplingChannel channel = new HeapSamplingChannel(FileChannel.open(file.toPath(), StandardOpenOption.WRITE))) {
+			ShardWriter.write(channel, shard, qChunks, 1.0, executor, huffman);
+			peak[0] = Math.max(peak[0], channel.peak);
+		}
+		return Files.readAllBytes(file.toPath());
+	}
+	
+	//streaming writer (two-pass and trained table) : same bytes as the in-memory writer whatever the thread number, bounded live heap
+	public static void streamingWriter(int[] shape, int[] chunkShape) throws Exception {
+		
+		Shard shard = new Shard(syntheticArray(shape, 5678), chunkShape);
+		List<QuantChunk> qChunks = quantChunks(chunkShape);
+		long shardSize = 4L * shape[0] * shape[1] * shape[2];
+		
+		long baseline = liveHeap();
+		
+		//in-memory writer, sampled when the shard is written (every chunk encoded)
+		long[] inMemoryPeak = new long[] {0};
+		ByteArrayOutputStream baos = new ByteArrayOutputStream() {
+			@Override public void write(byte[] b, int off, int len) {
+				if(inMemoryPeak[0] == 0) {
+					inMemoryPeak[0] = liveHeap();
+				}
+				super.write(b, off, len);
+			}
+		};
+		ShardWriter.write(baos, shard, qChunks, 1.0, 4);
+		byte[] expected = baos.toByteArray();
+		baos = null;
+		
+		Huffman trained;
+		try(ShardReader reader = new ShardReader(ByteBuffer.wrap(expected))) {
+			trained = reader.getHuffman();
+		}
+		
+		//table missing most symbols of the shard : falls back to the two-pass mode
+		Histogram histogram = new Histogram(256*256 + ChunkWriter.maxRunLen + 1, Short.MAX_VALUE);
+		for(int symbol : new int[] {-1, 0, 1, ChunkWriter.eobCode, ChunkWriter.eobCode + 1}) {
+			histogram.update(symbol);
+		}
+		Huffman partial = histogram.getHuffman();
+		
+		long[] twoPassPeak = new long[1];
+		long[] trainedPeak = new long[1];
+		byte[] oneShot = null;
+		
+		ExecutorService[] executors = new ExecutorService[] {Executors.newFixedThreadPool(1), Executors.newFixedThreadPool(2), Executors.newFixedThreadPool(4), new ForkJoinPool(3)};
+		try {
+			for(ExecutorService executor : executors) {
+				
+				byte[] twoPass = streamShard(shard, qChunks, null, executor, twoPassPeak);
+				if(Arrays.equals(expected, twoPass) == false) {
+					throw new IllegalStateException("streamingWriter : two-pass output differs with " + executor);
+				}
+				
+				oneShot = streamShard(shard, qChunks, trained, executor, trainedPeak);
+				if(Arrays.equals(expected, oneShot) == false) {
+					throw new IllegalStateException("streamingWriter : trained table output differs with " + executor);
+				}
+				
+				byte[] fallback = streamShard(shard, qChunks, partial, executor, twoPassPeak);
+				if(Arrays.equals(expected, fallback) == false) {
+					throw new IllegalStateException("streamingWriter : partial table output differs with " + executor);
+				}
+			}
+		} finally {
+			for(ExecutorService executor : executors) {
+				executor.shutdown();
+			}
+		}
+		
+		//decode check (only the order of magnitude of the error is checked : the noise exceeds maxError with the finest QuantChunk)
+		try(ShardReader reader = new ShardReader(ByteBuffer.wrap(oneShot))) {
+			for(int[] idx : chunkIndexes(reader)) {
+				float[] origin  = (float[])shard.getChunk(idx, DataType.FLOAT).getArray().getStorage();
+				float[] decoded = (float[])reader.getChunk(idx).getArray().getStorage();
+				for(int i = 0 ; i < origin.length ; i++) {
+					if(Math.abs(origin[i] - decoded[i]) > 5.0) {
+						throw new IllegalStateException("streamingWriter : chunk " + Arrays.toString(idx) + " error " + Math.abs(origin[i] - decoded[i]));
+					}
+				}
+			}
+		}
+		
+		//streaming writers must keep a few chunks in memory, not a shard worth of them
+		long bound = shardSize / 2;
+		long inMemory = inMemoryPeak[0] - baseline;
+		long streaming = Math.max(twoPassPeak[0], trainedPeak[0]) - baseline;
+		if(streaming > bound) {
+			throw new IllegalStateException("streamingWriter : live heap " + (streaming >> 10) + " KB > " + (bound >> 10) + " KB");
+		}
+		
+		System.out.println("streamingWriter : " + expected.length + " bytes / live heap in-memory = " + (inMemory >> 10) + " KB / two-pass = "
+				+ ((twoPassPeak[0] - baseline) >> 10) + " KB / trained = " + ((trainedPeak[0] - baseline) >> 10) + " KB OK");
+	}
+	
+	//same bytes whatever the executor and its thread number (quantization search seeded along each row of chunks)
+	public static void deterministicWriter(int[] shape, int[] chunkShape, double maxError) throws Exception {
+		
+		Shard shard = new Shard(syntheticArray(shape, 8765), chunkShape);
+		List<QuantChunk> qChunks = quantChunks(chunkShape);
+		
+		ByteArrayOutputStream reference = new ByteArrayOutputStream();
+		ShardWriter.write(reference, shard, qChunks, maxError, 1);
+		byte[] expected = reference.toByteArray();
+		
+		ExecutorService[] executors = new ExecutorService[] {Executors.newFixedThreadPool(3), Executors.newFixedThreadPool(8), new ForkJoinPool(5)};
+		try {
+			for(ExecutorService executor : executors) {
+				//twice with the same executor : state must not leak from a shard to the next one
+				for(int i = 0 ; i < 2 ; i++) {
+					ByteArrayOutputStream baos = new ByteArrayOutputStream();
+					ShardWriter.write(baos, shard, qChunks, maxError, executor);
+					if(Arrays.equals(expected, baos.toByteArray()) == false) {
+						throw new IllegalStateException("deterministicWriter : output differs with " + executor.getClass().getSimpleName());
+					}
+				}
+			}
+		} finally {
+			for(ExecutorService executor : executors) {
+				executor.shutdown();
+			}
+		}
+		
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ShardWriter.write(baos, shard, qChunks, maxError, 6);
+		if(Arrays.equals(expected, baos.toByteArray()) == false) {
+			throw new IllegalStateException("deterministicWriter : output differs with 6 threads");
+		}
+		
+		System.out.println("deterministicWriter : " + expected.length + " bytes OK");
+	}
+	
+	//bulk row copies must extract the same chunks (with zero padding) as the per sample Index copy
+	public static void chunkExtraction(int[] shape, int[] chunkShape, DataType source, DataType output) throws Exception {
+		
+		Random random = new Random(shape[0] * 31 + chunkShape[0]);
+		Array array = Array.factory(source, shape);
+		for(int i = 0 ; i < array.getSize() ; i++) {
+			array.setDouble(i, source.isIntegral() ? random.nextInt(1 << (8 * Math.min(source.getSize(), 3))) - 100 : random.nextGaussian() * 100.0);
+		}
+		
+		Shard shard = new Shard(array, chunkShape);
+		int[] numChunk = shard.getNumChunk();
+		int count = 0;
+		
+		int[] chunk = new int[shape.length];
+		for(chunk[0] = 0 ; chunk[0] < numChunk[0] ; chunk[0]++) {
+			for(chunk[1] = 0 ; chunk[1] < numChunk[1] ; chunk[1]++) {
+				for(chunk[2] = 0 ; chunk[2] < numChunk[2] ; chunk[2]++) {
+					
+					Shard.bulkCopy = false;
+					Array a1 = shard.getChunk(chunk, output).getArray();
+					Shard.bulkCopy = true;
+					Array a2 = shard.getChunk(chunk, output).getArray();
+					
+					for(int i = 0 ; i < a1.getSize() ; i++) {
+						if(Double.doubleToLongBits(a1.getDouble(i)) != Double.doubleToLongBits(a2.getDouble(i))) {
+							throw new IllegalStateException("chunkExtraction " + source + " => " + output + " : chunk " + Arrays.toString(chunk) + " differs at " + i + " : " + a2.getDouble(i) + " instead of " + a1.getDouble(i));
+						}
+					}
+					count++;
+				}
+			}
+		}
+		
+		System.out.println("chunkExtraction " + Arrays.toString(shape) + " / " + Arrays.toString(chunkShape) + " " + source + " => " + output + " : " + count + " chunks OK");
+	}
+	
+	//edge chunks padded with the data (REPLICATE / SYMMETRIC) must encode smaller than zero padding and keep maxError on the valid part
+	//(with zero padding the step at the shard edge may exceed maxError even with the finest QuantChunk)
+	public static void edgePadding(int[] shape, int[] chunkShape, double maxError) throws Exception {
+		
+		Array array = syntheticArray(shape, 2468);
+		float[] data = (float[])array.getStorage();
+		int[] strides = new int[] {shape[1] * shape[2], shape[2], 1};
+		
+		int[] sizes = new int[Shard.Padding.values().length];
+		double[] errors = new double[sizes.length];
+		for(Shard.Padding padding : Shard.Padding.values()) {
+			
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			ShardWriter.write(baos, new Shard(array, chunkShape, padding), quantChunks(chunkShape), maxError, 4);
+			byte[] bytes = baos.toByteArray();
+			sizes[padding.ordinal()] = bytes.length;
+			
+			float[] decoded = new float[data.length];
+			try(ShardReader reader = new ShardReader(ByteBuffer.wrap(bytes))) {
+				for(int[] idx : chunkIndexes(reader)) {
+					int offset = 0;
+					for(int d = 0 ; d < idx.length ; d++) {
+						offset += idx[d] * chunkShape[d] * strides[d];
+					}
+					reader.decodeInto(idx, decoded, offset, strides);
+				}
+			}
+			
+			double maxDiff = 0.0;
+			for(int i = 0 ; i < data.length ; i++) {
+				maxDiff = Math.max(maxDiff, Math.abs(decoded[i] - data[i]));
+			}
+			errors[padding.ordinal()] = maxDiff;
+			if(padding != Shard.Padding.ZERO && maxDiff > maxError) {
+				throw new IllegalStateException("edgePadding " + padding + " : max error " + maxDiff + " > " + maxError);
+			}
+		}
+		
+		int zero = sizes[Shard.Padding.ZERO.ordinal()];
+		for(Shard.Padding padding : new Shard.Padding[] {Shard.Padding.REPLICATE, Shard.Padding.SYMMETRIC}) {
+			if(sizes[padding.ordinal()] >= zero) {
+				throw new IllegalStateException("edgePadding " + padding + " : " + sizes[padding.ordinal()] + " bytes >= " + zero + " bytes (ZERO)");
+			}
+		}
+		
+		StringBuilder sb = new StringBuilder("edgePadding " + Arrays.toString(shape) + " :");
+		for(Shard.Padding padding : Shard.Padding.values()) {
+			sb.append(" " + padding + " = " + sizes[padding.ordinal()] + " bytes (max error " + (float)errors[padding.ordinal()] + ")");
+		}
+		System.out.println(sb.append(" OK"));
+	}
+	
+	//edge block (e.g. edge zarr chunk) completed to the block shape with Shard.padEdge : same gain as the edge padding of a shard,
+	//ZERO is the fill value completion (the chunks after the valid part are constant in both cases)
+	public static void edgeBlock(int[] valid, int[] blockShape, int[] chunkShape, double maxError) throws Exception {
+		
+		Array array = syntheticArray(valid, 3579);
+		float[] data = (float[])array.getStorage();
+		
+		int[] sizes = new int[Shard.Padding.values().length];
+		for(Shard.Padding padding : Shard.Padding.values()) {
+			
+			Array block = Shard.padEdge(array, blockShape, chunkShape, padding);
+			if(Arrays.equals(block.getShape(), blockShape) == false) {
+				throw new IllegalStateException("edgeBlock " + padding + " : shape " + Arrays.toString(block.getShape()));
+			}
+			
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			ShardWriter.write(baos, new Shard(block, chunkShape), quantChunks(chunkShape), maxError, 4);
+			byte[] bytes = baos.toByteArray();
+			sizes[padding.ordinal()] = bytes.length;
+			
+			float[] decoded;
+			try(ShardReader reader = new ShardReader(ByteBuffer.wrap(bytes))) {
+				decoded = (float[])reader.decodeAll(ForkJoinPool.commonPool()).getStorage();
+			}
+			
+			//valid part at the origin of the block
+			for(int k = 0 ; k < valid[0] ; k++) {
+				for(int j = 0 ; j < valid[1] ; j++) {
+					for(int i = 0 ; i < valid[2] ; i++) {
+						float expected = data[(k * valid[1] + j) * valid[2] + i];
+						float value = decoded[(k * blockShape[1] + j) * blockShape[2] + i];
+						if(padding != Shard.Padding.ZERO && Math.abs(value - expected) > maxError) {
+							throw new IllegalStateException("edgeBlock " + padding + " : error " + Math.abs(value - expected) + " > " + maxError + " at " + k + "/" + j + "/" + i);
+						}
+					}
+				}
+			}
+		}
+		
+		int zero = sizes[Shard.Padding.ZERO.ordinal()];
+		if(sizes[Shard.Padding.SYMMETRIC.ordinal()] >= zero) {
+			throw new IllegalStateException("edgeBlock : " + sizes[Shard.Padding.SYMMETRIC.ordinal()] + " bytes >= " + zero + " bytes (ZERO)");
+		}
+		
+		System.out.println("edgeBlock " + Arrays.toString(valid) + " in " + Arrays.toString(blockShape) + " : ZERO = " + zero + " bytes / SYMMETRIC = " + sizes[Shard.Padding.SYMMETRIC.ordinal()] + " bytes OK");
+	}
+	
+	//masked half of the shard (near constant) : chunks stored as a single value, decoded within maxError without Huffman decoding nor iDCT
+	public static void constantChunks(int[] shape, int[] chunkShape, double maxError, int loop) throws Exception {
+		
+		Array array = syntheticArray(shape, 1357);
+		float[] data = (float[])array.getStorage();
+		Random random = new Random(1357);
+		int masked = 0;
+		for(int k = 0 ; k < shape[0] ; k++) {
+			for(int j = shape[1] / 2 ; j < shape[1] ; j++) {
+				for(int i = 0 ; i < shape[2] ; i++) {
+					data[(k * shape[1] + j) * shape[2] + i] = 273.15f + (float)((random.nextDouble() - 0.5) * maxError);
+					masked++;
+				}
+			}
+		}
+		
+		byte[][] shards = new byte[2][];
+		byte[] versions = new byte[] {ShardWriter.idVersionRunLength, ShardWriter.idVersionConstant};
+		for(int v = 0 ; v < versions.length ; v++) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			ShardWriter.write(baos, new Shard(array, chunkShape), quantChunks(chunkShape), maxError, 4, new ShardWriter.Options(versions[v], Huffman.maxCodeLength));
+			shards[v] = baos.toByteArray();
+		}
+		
+		if(shards[1].length >= shards[0].length) {
+			throw new IllegalStateException("constantChunks : " + shards[1].length + " bytes >= " + shards[0].length + " bytes");
+		}
+		
+		int[] strides = new int[] {shape[1] * shape[2], shape[2], 1};
+		Benchmark[] benchmarks = new Benchmark[] {new Benchmark("decode (DCT only)"), new Benchmark("decode (constant chunks)")};
+		
+		for(int v = 0 ; v < shards.length ; v++) {
+			
+			float[] decoded = new float[data.length];
+			try(ShardReader reader = new ShardReader(ByteBuffer.wrap(shards[v]))) {
+				List<int[]> indexes = chunkIndexes(reader);
+				for(int l = 0 ; l < loop ; l++) {
+					benchmarks[v].start();
+					for(int[] idx : indexes) {
+						int offset = 0;
+						for(int d = 0 ; d < idx.length ; d++) {
+							offset += idx[d] * chunkShape[d] * strides[d];
+						}
+						reader.decodeInto(idx, decoded, offset, strides);
+					}
+					benchmarks[v].stop();
+				}
+				
+				//getChunk path on the masked chunks
+				for(int[] idx : indexes) {
+					if(idx[1] * chunkShape[1] >= shape[1] / 2) {
+						float[] chunk = (float[])reader.getChunk(idx).getArray().getStorage();
+						for(float f : chunk) {
+							if(Math.abs(f - 273.15f) > maxError) {
+								throw new IllegalStateException("constantChunks : chunk " + Arrays.toString(idx) + " value " + f);
+							}
+						}
+					}
+				}
+			}
+			
+			for(int i = 0 ; i < data.length ; i++) {
+				if(Math.abs(decoded[i] - data[i]) > maxError) {
+					throw new IllegalStateException("constantChunks : error " + Math.abs(decoded[i] - data[i]) + " > " + maxError + " at " + i);
+				}
+			}
+		}
+		
+		System.out.println("constantChunks : " + masked + " masked samples / " + shards[0].length + " => " + shards[1].length + " bytes / " + benchmarks[0] + " / " + benchmarks[1] + " OK");
+	}
+	
+	//low resolution decode (truncated iDCT) compared to the box average of the full decode
+	public static void reducedChunks(File file, double tolerance) throws Exception {
+		
+		try(ShardReader reader = new ShardReader(file)) {
+			
+			int[] chunkShape = reader.getChunkShape();
+			List<int[]> indexes = chunkIndexes(reader);
+			
+			for(int factor = 2 ; factor <= chunkShape[0] ; factor *= 2) {
+				
+				Benchmark bFull = new Benchmark("full");
+				Benchmark bReduced = new Benchmark("reduced");
+				double maxDiff = 0.0;
+				
+				for(int[] idx : indexes) {
+					
+					bFull.start();
+					float[] full = (float[])reader.getChunk(idx).getArray().getStorage();
+					bFull.stop();
+					
+					bReduced.start();
+					Chunk chunk = reader.getChunk(idx, factor);
+					bReduced.stop();
+					
+					int[] shape = chunk.getShape();
+					float[] reduced = (float[])chunk.getArray().getStorage();
+					for(int d = 0 ; d < shape.length ; d++) {
+						if(shape[d] != chunkShape[d] / factor) {
+							throw new IllegalStateException("reducedChunks " + factor + " : invalid shape " + Arrays.toString(shape));
+						}
+					}
+					
+					//box average of factor^3 samples
+					for(int k = 0 ; k < shape[0] ; k++) {
+						for(int j = 0 ; j < shape[1] ; j++) {
+							for(int i = 0 ; i < shape[2] ; i++) {
+								double sum = 0.0;
+								for(int z = k * factor ; z < (k + 1) * factor ; z++) {
+									for(int y = j * factor ; y < (j + 1) * factor ; y++) {
+										for(int x = i * factor ; x < (i + 1) * factor ; x++) {
+											sum += full[(z * chunkShape[1] + y) * chunkShape[2] + x];
+										}
+									}
+								}
+								double mean = sum / (factor * factor * factor);
+								maxDiff = Math.max(maxDiff, Math.abs(reduced[(k * shape[1] + j) * shape[2] + i] - mean));
+							}
+						}
+					}
+				}
+				
+				if(maxDiff > tolerance) {
+					throw new IllegalStateException("reducedChunks " + factor + " : max difference to the box average " + maxDiff + " > " + tolerance);
+				}
+				
+				System.out.println("reducedChunks " + factor + " : max difference " + (float)maxDiff + " / " + bFull + " / " + bReduced + " OK");
+			}
+		}
+	}
+	
+	//single plane of dim 0 (time step) compared to the same plane of the full decode
+	public static void sliceDecode(File file, int[] slices) throws Exception {
+		
+		try(ShardReader reader = new ShardReader(file)) {
+			
+			int[] chunkShape = reader.getChunkShape();
+			int plane = chunkShape[1] * chunkShape[2];
+			Benchmark bFull = new Benchmark("full");
+			Benchmark bSlice = new Benchmark("slice");
+			double maxDiff = 0.0;
+			
+			for(int[] idx : chunkIndexes(reader)) {
+				for(int t : slices) {
+					
+					bFull.start();
+					float[] full = (float[])reader.getChunk(idx).getArray().getStorage();
+					bFull.stop();
+					
+					bSlice.start();
+					Chunk chunk = reader.getSlice(idx, t);
+					bSlice.stop();
+					
+					if(Arrays.equals(chunk.getShape(), new int[] {chunkShape[1], chunkShape[2]}) == false) {
+						throw new IllegalStateException("sliceDecode : invalid shape " + Arrays.toString(chunk.getShape()));
+					}
+					
+					float[] slice = (float[])chunk.getArray().getStorage();
+					for(int p = 0 ; p < plane ; p++) {
+						maxDiff = Math.max(maxDiff, Math.abs(slice[p] - full[t * plane + p]));
+					}
+				}
+			}
+			
+			//float rounding of a different summation order
+			if(maxDiff > 1e-3) {
+				throw new IllegalStateException("sliceDecode : max difference " + maxDiff);
+			}
+			
+			System.out.println("sliceDecode : max difference " + (float)maxDiff + " / " + bFull + " / " + bSlice + " OK");
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		File file = syntheticShard(new int[] {40,70,50}, new int[] {32,32,32}, 0.1);
+		huffmanDecoders(file);
+		concurrentReads(file, false, 16, 10);
+		concurrentReads(file, true, 16, 10);
+		decodeAll(file, 8);
+		batchReads(file, false);
+		batchReads(file, true);
+		decodeInto(file);
+		shardVersions(new int[] {64,64,64}, new int[] {32,32,32});
+		shardVersions(new int[] {32,48,64}, new int[] {16,16,16});
+		streamingWriter(new int[] {128,192,192}, new int[] {32,32,32});
+		deterministicWriter(new int[] {64,96,96}, new int[] {32,32,32}, 5.0);
+		deterministicWriter(new int[] {48,64,80}, new int[] {16,16,16}, 5.0);
+		chunkExtraction(new int[] {64,64,64}, new int[] {32,32,32}, DataType.FLOAT, DataType.FLOAT);
+		chunkExtraction(new int[] {40,63,50}, new int[] {32,32,32}, DataType.FLOAT, DataType.FLOAT);
+		chunkExtraction(new int[] {17,31,47}, new int[] {16,16,16}, DataType.SHORT, DataType.FLOAT);
+		chunkExtraction(new int[] {17,31,47}, new int[] {16,16,16}, DataType.USHORT, DataType.FLOAT);
+		chunkExtraction(new int[] {17,31,47}, new int[] {16,16,16}, DataType.UBYTE, DataType.FLOAT);
+		chunkExtraction(new int[] {17,31,47}, new int[] {16,16,16}, DataType.SHORT, DataType.SHORT);
+		chunkExtraction(new int[] {17,31,47}, new int[] {16,16,16}, DataType.DOUBLE, DataType.FLOAT);
+		edgePadding(new int[] {45,72,50}, new int[] {32,32,32}, 5.0);
+		edgePadding(new int[] {33,95,61}, new int[] {32,32,32}, 5.0);
+		edgeBlock(new int[] {45,72,50}, new int[] {64,128,64}, new int[] {32,32,32}, 5.0);
+		constantChunks(new int[] {64,128,96}, new int[] {32,32,32}, 5.0, 10);
+		reducedChunks(syntheticShard(new int[] {64,64,96}, new int[] {32,32,32}, 1.0), 1.0);
+		sliceDecode(syntheticShard(new int[] {64,64,96}, new int[] {32,32,32}, 1.0), new int[] {0,7,16,31});
+	}
+	
+}
@@ -0,0 +1,141 @@
+package fr.visioterra.lib.io;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import fr.visioterra.lib.io.bit.BitReader;
+import fr.visioterra.lib.io.bit.BitWriter;
+import fr.visioterra.lib.io.bit.ByteBufferBitReader;
+import fr.visioterra.lib.io.stream.ByteArrayInputStream;
+import fr.visioterra.lib.io.stream.ByteArrayOutputStream;
+import fr.visioterra.lib.tools.Benchmark;
+
+public class TestBitReader {
+	
+	private static int[] codes;
+	private static int[] codesLen;
+	private static byte[] data;
+	
+	private static void init(int count, long seed) throws Exception {
+		
+		Random random = new Random(seed);
+		codes = new int[count];
+		codesLen = new int[count];
+		
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (BitWriter bitWriter = new BitWriter(baos, 64)) {
+			for (int i = 0; i < count; i++) {
+				codesLen[i] = 1 + random.nextInt(24);
+				codes[i] = random.nextInt() & ((1 << codesLen[i]) - 1);
+				bitWriter.writeBits(codes[i], codesLen[i]);
+			}
+		}
+		data = baos.toByteArray();
+	}
+	
+	private static void check(BitReader br, String message) throws Exception {
+		
+		for (int i = 0; i < codes.length; i++) {
+			
+			long code;
+			
+			//alternate readBits() and peekBits() + skipBits()
+			if(i % 2 == 0) {
+				code = br.readBits(codesLen[i]);
+			}
+			else {
+				code = br.peekBits(codesLen[i]);
+				br.skipBits(codesLen[i]);
+			}
+			
+			if(code != codes[i]) {
+				throw new IllegalStateException(message + " : code " + i + " = " + code + " instead of " + codes[i] + " (" + codesLen[i] + " bits)");
+			}
+		}
+		
+		System.out.println(message + " : " + codes.length + " codes OK");
+	}
+	
+	private static void checkEOF(BitReader br, String message) throws Exception {
+		
+		//peek is zero padded after EOF, read and skip are not
+		for(int i = 0 ; i < data.length - 1 ; i++) {
+			br.skipBits(8);
+		}
+		br.skipBits(4);
+		long peek = br.peekBits(12);
+		if((peek & 0xFF) != 0) {
+			throw new IllegalStateException(message + " : peek after EOF not zero padded");
+		}
+		
+		try {
+			br.skipBits(12);
+			throw new IllegalStateException(message + " : skip after EOF");
+		} catch(IllegalArgumentException e) {
+			//expected
+		}
+		
+		System.out.println(message + " : EOF OK");
+	}
+	
+	private static long read(BitReader br) throws Exception {
+		long sum = 0;
+		for (int i = 0; i < codes.length; i++) {
+			sum += br.readBits(codesLen[i]);
+		}
+		return sum;
+	}
+	
+	public static void benchmark(int loop) throws Exception {
+		
+		Benchmark bStream = new Benchmark("BitReader(InputStream)");
+		Benchmark bBuffer = new Benchmark("ByteBufferBitReader(byte[])");
+		long sum = 0;
+		
+		for(int l = 0 ; l < loop ; l++) {
+			
+			bStream.start();
+			try (BitReader br = new BitReader(new ByteArrayInputStream(data))) {
+				sum += read(br);
+			}
+			bStream.stop();
+			
+			bBuffer.start();
+			try (BitReader br = new ByteBufferBitReader(data)) {
+				sum -= read(br);
+			}
+			bBuffer.stop();
+		}
+		
+		if(sum != 0) {
+			throw new IllegalStateException("benchmark : readers mismatch");
+		}
+		
+		System.out.println(bStream);
+		System.out.println(bBuffer);
+	}
+	
+	public static void main(String[] args) throws Exception {
+		
+		init(100000, 42);
+		
+		check(new BitReader(new ByteArrayInputStream(data)), "BitReader(InputStream)");
+		check(new ByteBufferBitReader(data), "ByteBufferBitReader(byte[])");
+		
+		//ByteBuffer with position / limit and direct ByteBuffer
+		byte[] shifted = new byte[data.length + 10];
+		System.arraycopy(data, 0, shifted, 3, data.length);
+		check(new ByteBufferBitReader(shifted, 3, data.length), "ByteBufferBitReader(byte[],offset,length)");
+		
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+		direct.put(data).flip();
+		check(new ByteBufferBitReader(direct), "ByteBufferBitReader(direct ByteBuffer)");
+		
+		checkEOF(new BitReader(new ByteArrayInputStream(data)), "BitReader(InputStream)");
+		checkEOF(new ByteBufferBitReader(shifted, 3, data.length), "ByteBufferBitReader(byte[],offset,length)");
+		
+		init(1000000, 43);
+		benchmark(50);
+	}
+
+}
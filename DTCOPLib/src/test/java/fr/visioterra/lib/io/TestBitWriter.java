@@ -2,13 +2,130 @@ package fr.visioterra.lib.io;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Random;
 
 import fr.visioterra.lib.io.bit.BitWriter;
+import fr.visioterra.lib.io.stream.ByteArrayOutputStream;
 
 public class TestBitWriter {
 	
+	//previous byte per byte BitWriter, reference for the 64 bits accumulator
+	private static class ByteBitWriter {
+		
+		private final OutputStream os;
+		private final byte[] buffer;
+		private int emptyBits = 8;
+		private int bufIndex = 0;
+		
+		private ByteBitWriter(OutputStream os, int bufLength) {
+			this.os = os;
+			this.buffer = new byte[bufLength];
+		}
+		
+		private void flush(int len) throws Exception {
+			os.write(this.buffer, 0, len);
+			bufIndex = 0;
+			Arrays.fill(this.buffer, 0, len, (byte) 0x00);
+		}
+		
+		private void writeBits(int code, int codeLen) throws Exception {
+			
+			if (emptyBits == 0) {
+				if (++bufIndex >= buffer.length) flush(buffer.length);
+				emptyBits = 8;
+			}
+			
+			if (codeLen < emptyBits) {
+				int mask = (1 << codeLen) - 1;
+				buffer[bufIndex] |= ((code & mask) << (emptyBits - codeLen));
+				emptyBits -= codeLen;
+			}
+			else {
+				buffer[bufIndex] |= ((code >>> (codeLen - emptyBits)) & ((1 << emptyBits) - 1));
+				if (++bufIndex >= buffer.length) flush(buffer.length);
+				codeLen -= emptyBits;
+				emptyBits = 8;
+				while (codeLen > 8) {
+					buffer[bufIndex] = (byte) ((code >>> (codeLen - 8)) & 0xff);
+					if (++bufIndex >= buffer.length) flush(buffer.length);
+					codeLen -= emptyBits;
+				}
+				int mask = (1 << codeLen) - 1;
+				buffer[bufIndex] |= ((code & mask) << (emptyBits - codeLen));
+				emptyBits -= codeLen;
+			}
+		}
+		
+		private void flush() throws Exception {
+			if (bufIndex > 0 || this.emptyBits != 8) {
+				flush(bufIndex+1);
+				this.emptyBits = 8;
+			}
+		}
+	}
+	
+	private static byte[] write(BitWriter bw, ByteArrayOutputStream baos, int[] codes, int[] codesLen, int flushEvery) throws Exception {
+		try(BitWriter w = bw) {
+			for(int i = 0 ; i < codes.length ; i++) {
+				w.writeBits(codes[i], codesLen[i]);
+				if(flushEvery > 0 && i % flushEvery == flushEvery - 1) {
+					w.flush();
+				}
+			}
+		}
+		return baos.toByteArray();
+	}
+	
+	private static byte[] write(ByteBitWriter bw, ByteArrayOutputStream baos, int[] codes, int[] codesLen, int flushEvery) throws Exception {
+		for(int i = 0 ; i < codes.length ; i++) {
+			bw.writeBits(codes[i], codesLen[i]);
+			if(flushEvery > 0 && i % flushEvery == flushEvery - 1) {
+				bw.flush();
+			}
+		}
+		bw.flush();
+		return baos.toByteArray();
+	}
+	
+	//BitWriter must be byte-identical to the byte per byte writer (trailing empty byte included)
+	public static void byteIdentical(int count, int maxLen, int flushEvery) throws Exception {
+		
+		Random random = new Random(count * 100 + maxLen);
+		
+		for(int loop = 0 ; loop < 200 ; loop++) {
+			
+			int n = random.nextInt(count) + 1;
+			int[] codes = new int[n];
+			int[] codesLen = new int[n];
+			for(int i = 0 ; i < n ; i++) {
+				codes[i] = random.nextInt();
+				codesLen[i] = (random.nextInt(4) == 0) ? 8 * random.nextInt(5) : random.nextInt(maxLen + 1);
+			}
+			
+			//small buffers : output depends on the buffer length
+			int bufLength = 1 + random.nextInt(8);
+			ByteArrayOutputStream b1 = new ByteArrayOutputStream();
+			ByteArrayOutputStream b2 = new ByteArrayOutputStream();
+			byte[] expected = write(new ByteBitWriter(b1, bufLength), b1, codes, codesLen, flushEvery);
+			byte[] actual = write(new BitWriter(b2, bufLength), b2, codes, codesLen, flushEvery);
+			
+			if(Arrays.equals(expected, actual) == false) {
+				throw new IllegalStateException("byteIdentical : loop " + loop + " => " + actual.length + " bytes instead of " + expected.length);
+			}
+		}
+		
+		System.out.println("byteIdentical (count=" + count + ", maxLen=" + maxLen + ", flushEvery=" + flushEvery + ") OK");
+	}
+	
 	public static void main(String[] args) throws Exception {
+		
+		byteIdentical(1, 32, 0);
+		byteIdentical(10, 8, 0);
+		byteIdentical(1000, 32, 0);
+		byteIdentical(1000, 16, 7);
+		
 		File file = new File("D:/temp/COPEX-DCC/kokoriko.bin");
 		
 		try (BitWriter bitWriter = new BitWriter(new FileOutputStream(file), 1)) {